@@ -0,0 +1,217 @@
+package galo.sample.wiki.search;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Races the lock-free transitions of {@link SearchHandle} against each other across threads, many
+ * times over, checking that exactly one of the racing transitions wins and that every completion
+ * listener is called exactly once.
+ */
+public class SearchHandleTest extends TestCase
+{
+    private static final int ROUNDS = 2000;
+
+    public void testCancelRacesDelivery() throws InterruptedException
+    {
+        for(int round = 0; round < ROUNDS; round++)
+        {
+            final SearchHandle handle = new SearchHandle();
+            assertTrue(handle.markRunning());
+            CountingListener listener = new CountingListener();
+            handle.addCompletionListener(listener);
+
+            final AtomicBoolean bCancelled = new AtomicBoolean(),
+                                bDelivered = new AtomicBoolean();
+            race(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    bCancelled.set(handle.cancel());
+                }
+            }, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    bDelivered.set(handle.markDelivered());
+                }
+            });
+
+            assertTrue("Exactly one side must win.", bCancelled.get() != bDelivered.get());
+            assertEquals(bCancelled.get() ? SearchHandle.State.CANCELLED : SearchHandle.State.DELIVERED
+                    , handle.getState());
+            assertEquals("The listener must be called once.", 1, listener.getCount());
+        }
+    }
+
+    public void testCancelRacesRunning() throws InterruptedException
+    {
+        for(int round = 0; round < ROUNDS; round++)
+        {
+            final SearchHandle handle = new SearchHandle();
+            CountingListener listener = new CountingListener();
+            handle.addCompletionListener(listener);
+
+            final AtomicBoolean bCancelled = new AtomicBoolean(),
+                                bRunning = new AtomicBoolean();
+            race(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    bCancelled.set(handle.cancel());
+                }
+            }, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    bRunning.set(handle.markRunning());
+                }
+            });
+
+            // running is no end, a queued or running search can always be cancelled.
+            assertTrue(bCancelled.get());
+            assertEquals(SearchHandle.State.CANCELLED, handle.getState());
+            assertFalse("A cancelled search must not start running.", handle.markRunning());
+            assertEquals("The listener must be called once.", 1, listener.getCount());
+        }
+    }
+
+    public void testCancelRacesRunningAndDelivery() throws InterruptedException
+    {
+        for(int round = 0; round < ROUNDS; round++)
+        {
+            final SearchHandle handle = new SearchHandle();
+            CountingListener listener = new CountingListener();
+            handle.addCompletionListener(listener);
+
+            final AtomicBoolean bCancelled = new AtomicBoolean(),
+                                bDelivered = new AtomicBoolean();
+            race(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    bCancelled.set(handle.cancel());
+                }
+            }, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    handle.markRunning();
+                }
+            }, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    bDelivered.set(handle.markDelivered());
+                }
+            });
+
+            assertTrue("Exactly one side must win.", bCancelled.get() != bDelivered.get());
+            assertFalse(handle.isActive());
+            assertEquals("The listener must be called once.", 1, listener.getCount());
+        }
+    }
+
+    public void testListenersAddedWhileCompleting() throws InterruptedException
+    {
+        final int nListeners = 8;
+        for(int round = 0; round < ROUNDS; round++)
+        {
+            final SearchHandle handle = new SearchHandle();
+            final List<CountingListener> listeners = new ArrayList<CountingListener>();
+            for(int i = 0; i < nListeners; i++)
+                listeners.add(new CountingListener());
+
+            final AtomicBoolean bDelivered = new AtomicBoolean();
+            race(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for(int i = 0; i < nListeners / 2; i++)
+                        handle.addCompletionListener(listeners.get(i));
+                }
+            }, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    bDelivered.set(handle.markDelivered());
+                }
+            }, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for(int i = nListeners / 2; i < nListeners; i++)
+                        handle.addCompletionListener(listeners.get(i));
+                }
+            });
+
+            assertTrue(bDelivered.get());
+            for(CountingListener listener : listeners)
+                assertEquals("Every listener must be called once.", 1, listener.getCount());
+        }
+    }
+
+    /**
+     * Runs the tasks on threads of their own, released at the same time, and waits for them all.
+     */
+    private static void race(Runnable... tasks) throws InterruptedException
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[tasks.length];
+        for(int i = 0; i < tasks.length; i++)
+        {
+            final Runnable task = tasks[i];
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    task.run();
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for(Thread thread : threads)
+            thread.join();
+    }
+
+    private static class CountingListener implements SearchHandle.CompletionListener
+    {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public void onSearchCompleted(SearchHandle handle)
+        {
+            mCount.incrementAndGet();
+        }
+
+        int getCount()
+        {
+            return mCount.get();
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package galo.sample.wiki.api;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Following the JSON string returned by the Wikipedia API.  Examples of the return structure can
@@ -12,13 +18,59 @@ import java.util.List;
  */
 public class ImageQueryResults
 {
+    private static final Comparator<Page> PAGE_INDEX_COMPARATOR = new Comparator<Page>()
+    {
+        @Override
+        public int compare(Page lhs, Page rhs)
+        {
+            return lhs.getIndex() - rhs.getIndex();
+        }
+    };
+
     private List<Page> mPages;
     private String mRequestId;
+    private boolean mProvisional;
+    private Map<String, String> mContinuation;
 
     public ImageQueryResults(List<Page> pages, String requestId)
+    {
+        this(pages, requestId, false);
+    }
+
+    /**
+     *
+     * @param pages
+     * The pages.
+     * @param requestId
+     * The request id the pages are for.
+     * @param provisional
+     * True if these are not the actual results of the request but a local guess at them, which will
+     * be followed by the actual results.
+     */
+    public ImageQueryResults(List<Page> pages, String requestId, boolean provisional)
+    {
+        this(pages, requestId, provisional, null);
+    }
+
+    /**
+     *
+     * @param pages
+     * The pages.
+     * @param requestId
+     * The request id the pages are for.
+     * @param provisional
+     * True if these are not the actual results of the request but a local guess at them.
+     * @param continuation
+     * The parameters of the "continue" object the API returned, to be sent back to get the next batch
+     * of pages.  Null or empty if there are no more pages.
+     */
+    public ImageQueryResults(List<Page> pages, String requestId, boolean provisional, Map<String, String> continuation)
     {
         mPages = Collections.unmodifiableList(pages);
         mRequestId = requestId == null ? "" : requestId;
+        mProvisional = provisional;
+        mContinuation = continuation == null || continuation.isEmpty() ? Collections.<String, String>emptyMap()
+                : Collections.unmodifiableMap(new LinkedHashMap<String, String>(continuation));
     }
 
     public List<Page> getPages()
@@ -30,4 +82,125 @@ public class ImageQueryResults
     {
         return mRequestId;
     }
+
+    /**
+     * @return
+     * True if the pages were not received from the Wikipedia API for this request but derived locally
+     * from earlier results, in which case the actual results will follow.
+     */
+    public boolean isProvisional()
+    {
+        return mProvisional;
+    }
+
+    /**
+     * @return
+     * The parameters to send with the same query to get the next batch of pages, empty if there are
+     * no more pages.
+     */
+    public Map<String, String> getContinuation()
+    {
+        return mContinuation;
+    }
+
+    /**
+     * @return
+     * True if the API has more pages for the query than these.
+     */
+    public boolean hasMorePages()
+    {
+        return !mContinuation.isEmpty();
+    }
+
+    /**
+     * @param requestId
+     * The request id to give the copy.
+     * @return
+     * A copy of these results under another request id.
+     */
+    public ImageQueryResults withRequestId(String requestId)
+    {
+        return new ImageQueryResults(mPages, requestId, mProvisional, mContinuation);
+    }
+
+    /**
+     * @return
+     * A copy of these results marked as provisional, for results shown until the actual ones arrive.
+     */
+    public ImageQueryResults asProvisional()
+    {
+        return new ImageQueryResults(mPages, mRequestId, true, mContinuation);
+    }
+
+    /**
+     * Appends the next batch of pages to these results.  Pages already part of these results are
+     * skipped and the appended pages are indexed right after the last page of these results, in the
+     * order the API ranked them.
+     *
+     * @param nextBatch
+     * The results of the continued query.
+     * @return
+     * New results, under the request id of these, holding the pages of both and the continuation of
+     * the next batch.
+     */
+    public ImageQueryResults append(ImageQueryResults nextBatch)
+    {
+        List<Page> batchPages = new ArrayList<Page>(nextBatch.getPages());
+        Collections.sort(batchPages, PAGE_INDEX_COMPARATOR);
+        Set<Integer> knownPageIds = new HashSet<Integer>();
+        int lastIndex = 0;
+        for(Page page : mPages)
+        {
+            knownPageIds.add(page.getPageId());
+            lastIndex = Math.max(lastIndex, page.getIndex());
+        }
+
+        List<Page> pages = new ArrayList<Page>(mPages.size() + batchPages.size());
+        pages.addAll(mPages);
+        for(Page page : batchPages)
+        {
+            if(page.getPageId() != Page.MISSING_PAGEID_ID && !knownPageIds.add(page.getPageId()))
+                continue;
+            pages.add(new Page(page.getPageId(), page.getNs(), page.getTitle(), ++lastIndex, page.getThumbNail()));
+        }
+        return new ImageQueryResults(pages, mRequestId, mProvisional, nextBatch.getContinuation());
+    }
+
+    /**
+     * Compares the pages of both results, ignoring the request ids.
+     *
+     * @param other
+     * The results to compare to.
+     * @return
+     * True if both results hold the same pages, in the same order, with the same titles, indices and
+     * thumbnails.
+     */
+    public boolean hasSamePages(ImageQueryResults other)
+    {
+        if(other == null || other.mPages.size() != mPages.size())
+            return false;
+        for(int i = 0; i < mPages.size(); i++)
+        {
+            Page lhs = mPages.get(i),
+                 rhs = other.mPages.get(i);
+            if(lhs.getPageId() != rhs.getPageId() || lhs.getIndex() != rhs.getIndex()
+                    || !equalStrings(lhs.getTitle(), rhs.getTitle()))
+                return false;
+            Thumbnail lhsThumb = lhs.getThumbNail(),
+                      rhsThumb = rhs.getThumbNail();
+            if(lhsThumb == null || rhsThumb == null)
+            {
+                if(lhsThumb != rhsThumb)
+                    return false;
+            }
+            else if(!equalStrings(lhsThumb.getSource(), rhsThumb.getSource()))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean equalStrings(String lhs, String rhs)
+    {
+        return lhs == null ? rhs == null : lhs.equals(rhs);
+    }
 }
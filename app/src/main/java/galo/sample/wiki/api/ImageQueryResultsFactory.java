@@ -1,11 +1,26 @@
 package galo.sample.wiki.api;
 
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
 
 /**
  * A simple class that generates an object structure base off of the return Wikipedia API JSON structure
@@ -16,7 +31,11 @@ import java.util.List;
 public class ImageQueryResultsFactory
 {
     private static final String EMPTY_STRING = "";
+    private static final int BINARY_MAGIC = 0x57495131; // "WIQ1"
+    private static final int BINARY_VERSION = 2;
+    private static final String CHARSET = "UTF-8";
     private static final String REQUESTID = "requestid",
+                                CONTINUE = "continue",
                                 QUERY = "query",
                                 PAGES = "pages",
                                 PAGEID = "pageid",
@@ -28,14 +47,40 @@ public class ImageQueryResultsFactory
                                 THUMB_WIDTH = "width",
                                 THUMB_HEIGHT = "height";
 
+    /**
+     * Notified of every page as soon as it has been read from a response, before the rest of the
+     * response has even been received.
+     */
+    public static interface PageParsedListener
+    {
+        /**
+         * Called on the thread doing the parsing.
+         *
+         * @param page
+         * The fully parsed page, the same instance that will be part of the final results.
+         */
+        public void onPageParsed(Page page);
+    }
+
     public static ImageQueryResults parseJSON(String jsonStr)
     {
         final List<Page> pageList = new LinkedList<Page>();
+        final Map<String, String> continuation = new LinkedHashMap<String, String>();
         String requestId = "";
         try
         {
             JSONObject root = new JSONObject(jsonStr);
             requestId = root.has(REQUESTID) ? root.getString(REQUESTID) : EMPTY_STRING;
+            if(root.has(CONTINUE))
+            {
+                JSONObject continueObj = root.getJSONObject(CONTINUE);
+                Iterator<String> continueKeys = continueObj.keys();
+                while(continueKeys.hasNext())
+                {
+                    String key = continueKeys.next();
+                    continuation.put(key, continueObj.getString(key));
+                }
+            }
             JSONObject pages = root.getJSONObject(QUERY).getJSONObject(PAGES);
             Iterator<String> keyIterator = pages.keys();
             while(keyIterator.hasNext())
@@ -68,6 +113,245 @@ public class ImageQueryResultsFactory
             e.printStackTrace();
         }
 
-        return new ImageQueryResults(pageList, requestId);
+        return new ImageQueryResults(pageList, requestId, false, continuation);
+    }
+
+    /**
+     * Parses the response token by token straight from the stream, creating each {@link Page} as soon
+     * as its JSON object has been read and handing it to the listener.  Neither the whole response
+     * string nor a JSON object tree is ever held in memory.
+     *
+     * On platforms without {@link JsonReader} this falls back to reading the response into a string
+     * and using {@link #parseJSON(String)}, notifying the listener once everything has been parsed.
+     *
+     * @param in
+     * The content of the response.  It is read to the end, but not closed.
+     * @param defaultRequestId
+     * The request id to use if the response does not echo one back.
+     * @param listener
+     * Notified of every page as it is parsed, can be null.
+     * @return
+     * The parsed results.
+     * @throws IOException
+     * If the stream could not be read or the content is not well formed JSON.
+     */
+    public static ImageQueryResults parseJSONStream(InputStream in, String defaultRequestId
+            , PageParsedListener listener) throws IOException
+    {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+            return parseWithJsonReader(new InputStreamReader(in, CHARSET), defaultRequestId, listener);
+
+        Scanner scanner = new Scanner(in, CHARSET);
+        StringBuilder sb = new StringBuilder();
+        while(scanner.hasNextLine())
+            sb.append(scanner.nextLine());
+        ImageQueryResults results = parseJSON(sb.toString());
+        if(listener != null)
+        {
+            for(Page page : results.getPages())
+                listener.onPageParsed(page);
+        }
+        return results.getRequestId().isEmpty() ? results.withRequestId(defaultRequestId) : results;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ImageQueryResults parseWithJsonReader(Reader in, String defaultRequestId
+            , PageParsedListener listener) throws IOException
+    {
+        final List<Page> pageList = new LinkedList<Page>();
+        final Map<String, String> continuation = new LinkedHashMap<String, String>();
+        String requestId = null;
+        JsonReader reader = new JsonReader(in);
+        reader.beginObject();
+        while(reader.hasNext())
+        {
+            String name = reader.nextName();
+            if(REQUESTID.equals(name))
+                requestId = reader.nextString();
+            else if(CONTINUE.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT)
+            {
+                // i.e. {"gpsoffset":50,"continue":"gpsoffset||"}, numbers are read as strings.
+                reader.beginObject();
+                while(reader.hasNext())
+                    continuation.put(reader.nextName(), reader.nextString());
+                reader.endObject();
+            }
+            else if(QUERY.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT)
+            {
+                reader.beginObject();
+                while(reader.hasNext())
+                {
+                    if(PAGES.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT)
+                    {
+                        reader.beginObject();
+                        while(reader.hasNext())
+                        {
+                            // the page objects are keyed by their page id, which is repeated inside.
+                            reader.nextName();
+                            Page page = readPage(reader);
+                            pageList.add(page);
+                            if(listener != null)
+                                listener.onPageParsed(page);
+                        }
+                        reader.endObject();
+                    }
+                    else
+                        reader.skipValue();
+                }
+                reader.endObject();
+            }
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+
+        return new ImageQueryResults(pageList, requestId != null ? requestId : defaultRequestId, false, continuation);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Page readPage(JsonReader reader) throws IOException
+    {
+        // search 'venk', page with no page id and a 'missing' tag with empty string as value comes in.
+        int pageId = Page.MISSING_PAGEID_ID;
+        int ns = 0;
+        String title = EMPTY_STRING;
+        int index = 0;
+        Thumbnail thumbnail = null;
+
+        reader.beginObject();
+        while(reader.hasNext())
+        {
+            String name = reader.nextName();
+            if(PAGEID.equals(name))
+                pageId = reader.nextInt();
+            else if(NS.equals(name))
+                ns = reader.nextInt();
+            else if(TITLE.equals(name))
+                title = reader.nextString();
+            else if(INDEX.equals(name))
+                index = reader.nextInt();
+            else if(THUMB.equals(name))
+                thumbnail = readThumbnail(reader);
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+
+        return new Page(pageId, ns, title, index, thumbnail);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Thumbnail readThumbnail(JsonReader reader) throws IOException
+    {
+        String source = null;
+        int width = 0,
+            height = 0;
+
+        reader.beginObject();
+        while(reader.hasNext())
+        {
+            String name = reader.nextName();
+            if(THUMB_SRC.equals(name))
+                source = reader.nextString();
+            else if(THUMB_WIDTH.equals(name))
+                width = reader.nextInt();
+            else if(THUMB_HEIGHT.equals(name))
+                height = reader.nextInt();
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+
+        return source != null ? new Thumbnail(source, width, height) : null;
+    }
+
+    /**
+     * Writes the pages of the results in a compact binary form meant for caching, which is much quicker
+     * to read back than the original JSON.  The request id is not written, the continuation is.
+     *
+     * @param results
+     * The results to write.
+     * @param out
+     * Where to write them to.
+     * @throws IOException
+     * If writing fails.
+     * @see #readBinary(DataInput, String)
+     */
+    public static void writeBinary(ImageQueryResults results, DataOutput out) throws IOException
+    {
+        List<Page> pages = results.getPages();
+        out.writeInt(BINARY_MAGIC);
+        out.writeInt(BINARY_VERSION);
+        out.writeInt(pages.size());
+        for(Page page : pages)
+        {
+            out.writeInt(page.getPageId());
+            out.writeInt(page.getNs());
+            out.writeUTF(page.getTitle() != null ? page.getTitle() : EMPTY_STRING);
+            out.writeInt(page.getIndex());
+            Thumbnail thumbnail = page.getThumbNail();
+            out.writeBoolean(thumbnail != null);
+            if(thumbnail != null)
+            {
+                out.writeUTF(thumbnail.getSource());
+                out.writeInt(thumbnail.getWidth());
+                out.writeInt(thumbnail.getHeight());
+            }
+        }
+        Map<String, String> continuation = results.getContinuation();
+        out.writeInt(continuation.size());
+        for(Map.Entry<String, String> param : continuation.entrySet())
+        {
+            out.writeUTF(param.getKey());
+            out.writeUTF(param.getValue());
+        }
+    }
+
+    /**
+     * Reads results written by {@link #writeBinary(ImageQueryResults, DataOutput)}.
+     *
+     * @param in
+     * Where to read the results from.
+     * @param requestId
+     * The request id to give the results.
+     * @return
+     * The results.
+     * @throws IOException
+     * If reading fails or the data was not written by a compatible version.
+     */
+    public static ImageQueryResults readBinary(DataInput in, String requestId) throws IOException
+    {
+        if(in.readInt() != BINARY_MAGIC || in.readInt() != BINARY_VERSION)
+            throw new IOException("Unknown binary results format.");
+        int count = in.readInt();
+        if(count < 0)
+            throw new IOException("Corrupt binary results.");
+        final List<Page> pageList = new ArrayList<Page>(count);
+        for(int i = 0; i < count; i++)
+        {
+            int pageId = in.readInt();
+            int ns = in.readInt();
+            String title = in.readUTF();
+            int index = in.readInt();
+            Thumbnail thumbnail = null;
+            if(in.readBoolean())
+            {
+                String source = in.readUTF();
+                int width = in.readInt();
+                int height = in.readInt();
+                thumbnail = new Thumbnail(source, width, height);
+            }
+            pageList.add(new Page(pageId, ns, title, index, thumbnail));
+        }
+        int continuationCount = in.readInt();
+        if(continuationCount < 0)
+            throw new IOException("Corrupt binary results.");
+        final Map<String, String> continuation = new LinkedHashMap<String, String>();
+        for(int i = 0; i < continuationCount; i++)
+        {
+            String key = in.readUTF();
+            continuation.put(key, in.readUTF());
+        }
+        return new ImageQueryResults(pageList, requestId, false, continuation);
     }
 }
@@ -6,7 +6,10 @@ import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.protocol.HTTP;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Holds the basic structure and provide the essential portions that are needed to form a Wikipedia API
@@ -28,6 +31,10 @@ public class WikiImageQuery
      * generator=prefixsearch&
      * gpssearch=Cat&           : search term for which results will be returned.
      * gpslimit=50              : maximum number of search results to return.
+     * gpsoffset=50&            : when continuing, the parameters of the previous response's 'continue'
+     * continue=gpsoffset||       object are sent back as is to get the next batch of results.
+     * maxlag=5                 : refuse the query while the database replicas lag by more seconds than
+     *                            this, answering with a maxlag error and a Retry-After header instead.
      */
 
     private static final String URL_FORMAT = "https://en.wikipedia.org/w/api.php?action=query&" +
@@ -52,20 +59,57 @@ public class WikiImageQuery
                                PITHUMBSIZE_KEY = "pithumbsize",
                                PILIMIT_KEY = "pilimit",
                                GPSSEARCH_KEY = "gpssearch",
-                               GPSLIMIT_KEY = "gpslimit";
+                               GPSLIMIT_KEY = "gpslimit",
+                               MAXLAG_KEY = "maxlag";
+
+    /**
+     * The replica lag, in seconds, beyond which the API refuses the query, as MediaWiki asks of
+     * clients that can wait.
+     */
+    public static final int MAXLAG_SECONDS = 5;
+
+    /**
+     * The response header naming the error of a refused query, and its value when the refusal is
+     * because of replica lag.
+     */
+    public static final String API_ERROR_HEADER = "MediaWiki-API-Error",
+                               MAXLAG_ERROR = "maxlag";
 
 
     private final String mSearchTerm,
                          mRequestId;
     private final int mMaxThumbSize,
                       mRecordCount;
+    private final Map<String, String> mContinuation;
 
     public WikiImageQuery(String searchTerm, String requestId, int maxThumbSize, int recordCount)
+    {
+        this(searchTerm, requestId, maxThumbSize, recordCount, null);
+    }
+
+    /**
+     *
+     * @param searchTerm
+     * The text to search for.
+     * @param requestId
+     * The request id echoed back in the results.
+     * @param maxThumbSize
+     * The maximum size an image can be.
+     * @param recordCount
+     * The max number of records to return in this batch.
+     * @param continuation
+     * The continuation of the previous batch, see {@link ImageQueryResults#getContinuation()}, or null
+     * to query the first batch.
+     */
+    public WikiImageQuery(String searchTerm, String requestId, int maxThumbSize, int recordCount
+            , Map<String, String> continuation)
     {
         mSearchTerm = searchTerm == null ? "" : searchTerm;
         mMaxThumbSize = maxThumbSize;
         mRecordCount = recordCount;
         mRequestId = requestId;
+        mContinuation = continuation == null || continuation.isEmpty() ? Collections.<String, String>emptyMap()
+                : Collections.unmodifiableMap(new LinkedHashMap<String, String>(continuation));
     }
 
     public String getSearchTerm()
@@ -85,6 +129,18 @@ public class WikiImageQuery
         return mMaxThumbSize;
     }
 
+    public Map<String, String> getContinuation() {
+        return mContinuation;
+    }
+
+    /**
+     * @return
+     * True if this query asks for a batch following the first one.
+     */
+    public boolean isContinuation() {
+        return !mContinuation.isEmpty();
+    }
+
     /**
      * Generates a full url query you would enter into the Url field in a browser.
      * @return
@@ -103,7 +159,7 @@ public class WikiImageQuery
      */
     public String generateEncodedEntityString()
     {
-        List<NameValuePair> nvp = new ArrayList<NameValuePair>(10);
+        List<NameValuePair> nvp = new ArrayList<NameValuePair>(11 + mContinuation.size());
         nvp.add(new BasicNameValuePair(ACTION_KEY, ACTION_VALUE));
         nvp.add(new BasicNameValuePair(PROP_KEY, PROP_VALUE));
         nvp.add(new BasicNameValuePair(FORMAT_KEY, FORMAT_VALUE));
@@ -114,6 +170,9 @@ public class WikiImageQuery
         nvp.add(new BasicNameValuePair(PILIMIT_KEY, Integer.toString(mRecordCount)));
         nvp.add(new BasicNameValuePair(GPSLIMIT_KEY, Integer.toString(mRecordCount)));
         nvp.add(new BasicNameValuePair(GPSSEARCH_KEY, mSearchTerm));
+        nvp.add(new BasicNameValuePair(MAXLAG_KEY, Integer.toString(MAXLAG_SECONDS)));
+        for(Map.Entry<String, String> param : mContinuation.entrySet())
+            nvp.add(new BasicNameValuePair(param.getKey(), param.getValue()));
         return URLEncodedUtils.format(nvp, HTTP.UTF_8);
     }
 
@@ -25,6 +25,49 @@ public class WikiImageQueryFactory
     public static WikiImageQuery generateUniquelyIndentifiableQuery(String searchTerm
             , int maxThumbSize, int recordCount)
     {
-        return new WikiImageQuery(searchTerm, UUID.randomUUID().toString(), maxThumbSize, recordCount);
+        return generateQuery(searchTerm, UUID.randomUUID().toString(), maxThumbSize, recordCount);
+    }
+
+    /**
+     * Creates a query identified by a request id the caller already has, i.e. the one of the search
+     * handle the query is made for.
+     *
+     * @param searchTerm
+     * The text to search for.
+     * @param requestId
+     * The request id echoed back in the results.
+     * @param maxThumbSize
+     * The maximum size an image can be.
+     * @param recordCount
+     * The max number of records to return.
+     * @return
+     * A WikiImageQuery that facilitates the http request.
+     */
+    public static WikiImageQuery generateQuery(String searchTerm, String requestId
+            , int maxThumbSize, int recordCount)
+    {
+        return new WikiImageQuery(searchTerm, requestId, maxThumbSize, recordCount);
+    }
+
+    /**
+     * Creates a query for the batch of pages following the given results of the same search.
+     *
+     * @param searchTerm
+     * The text the previous results were searched with.
+     * @param requestId
+     * The request id echoed back in the results.
+     * @param maxThumbSize
+     * The maximum size an image can be.
+     * @param recordCount
+     * The max number of records to return in this batch.
+     * @param previousResults
+     * The results so far, whose continuation is sent with the query.
+     * @return
+     * A WikiImageQuery that facilitates the http request.
+     */
+    public static WikiImageQuery generateContinuationQuery(String searchTerm, String requestId
+            , int maxThumbSize, int recordCount, ImageQueryResults previousResults)
+    {
+        return new WikiImageQuery(searchTerm, requestId, maxThumbSize, recordCount, previousResults.getContinuation());
     }
 }
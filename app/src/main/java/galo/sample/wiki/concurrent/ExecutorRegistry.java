@@ -0,0 +1,179 @@
+package galo.sample.wiki.concurrent;
+
+import android.content.Context;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import galo.sample.wiki.net.AdaptiveConcurrencyLimiter;
+import galo.sample.wiki.util.ResourceProfile;
+
+/**
+ * The thread pools of the whole process, one per kind of work, so that the number of threads is set
+ * by the kinds of work rather than by how many searches, text fields or fragments there are.  Each pool
+ * is bounded, creates its threads when needed, lets them go when idle and runs them at background
+ * priority, so that they never compete with the Main Looper thread for the cpu.  Pools are sized from
+ * the {@link ResourceProfile}.
+ *
+ * Work needing its own ordering or limits, such as {@link PriorityDispatcher}, runs on top of these
+ * pools rather than creating its own.  Work to be run after a delay, such as hedged requests, is
+ * timed on the {@link #getScheduledExecutor() scheduled pool}, which then hands it to the pool of its
+ * role.
+ *
+ * This is thread-safe.
+ */
+public final class ExecutorRegistry
+{
+    /**
+     * The kinds of work the process runs in the background.
+     */
+    public enum Role
+    {
+        /**
+         * Requests to the network, which mostly wait: search requests and thumbnail downloads.
+         */
+        NETWORK_IO,
+        /**
+         * Reads and writes of the disk caches.
+         */
+        DISK_IO,
+        /**
+         * Decoding images, which is cpu bound.
+         */
+        DECODE,
+        /**
+         * Handing completed work to whoever waits for it, kept short so that results reach the Main
+         * Looper thread promptly.
+         */
+        DELIVERY
+    }
+
+    // hedged requests out at the same time that get a thread of their own rather than waiting for one.
+    private static final int NETWORK_IO_HEDGE_THREADS = 2;
+    // enough for the newest searches, a batch of more pages, the downloads the host limiter lets
+    // through at most and a few hedges.
+    private static final int NETWORK_IO_THREADS = 3 + AdaptiveConcurrencyLimiter.DEFAULT_MAX_LIMIT
+            + NETWORK_IO_HEDGE_THREADS;
+    private static final int DELIVERY_THREADS = 1;
+    // its work must only hand other work to the pool of its role, never block, so that no timer
+    // fires late behind a slow request.  Then a couple of threads keep up with it.
+    private static final int SCHEDULED_THREADS = 2;
+
+    private static final Map<Role, MonitoredExecutor> sExecutors = new EnumMap<Role, MonitoredExecutor>(Role.class);
+    private static MonitoredScheduledExecutor sScheduledExecutor;
+
+    private ExecutorRegistry()
+    {
+    }
+
+    /**
+     * Retrieves the pool of the role, creating it on first use.
+     *
+     * @param context
+     * Any context, only used the first time to profile the device for the {@link Role#DECODE} pool,
+     * see {@link ResourceProfile}, so it may be null for the other roles.
+     * @param role
+     * The kind of work.
+     * @return
+     * The process-wide pool, which is never shut down.
+     */
+    public static synchronized MonitoredExecutor getExecutor(Context context, Role role)
+    {
+        if(role == null)
+            throw new NullPointerException("The role cannot be null.");
+        MonitoredExecutor executor = sExecutors.get(role);
+        if(executor == null)
+        {
+            executor = createExecutor(context, role);
+            sExecutors.put(role, executor);
+        }
+        return executor;
+    }
+
+    private static MonitoredExecutor createExecutor(Context context, Role role)
+    {
+        switch(role)
+        {
+            case NETWORK_IO:
+                return new MonitoredExecutor("NetworkIoThread", NETWORK_IO_THREADS, Process.THREAD_PRIORITY_BACKGROUND);
+            case DISK_IO:
+                // resized once the cache directory has been probed, see ResourceProfile.prefetch().
+                return new MonitoredExecutor("DiskIoThread", ResourceProfile.DEFAULT_DISK_IO_THREADS
+                        , Process.THREAD_PRIORITY_BACKGROUND);
+            case DECODE:
+                return new MonitoredExecutor("DecodeThread", ResourceProfile.getInstance(context).getCpuBoundThreads()
+                        , Process.THREAD_PRIORITY_BACKGROUND);
+            default:
+                // slightly ahead of the work whose results it delivers.
+                return new MonitoredExecutor("DeliveryThread", DELIVERY_THREADS
+                        , Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        }
+    }
+
+    /**
+     * Retrieves the pool running work after a delay, creating it on first use.  Its work must not block,
+     * blocking work is to be handed to the pool of its role once its time has come.
+     *
+     * @return
+     * The process-wide pool, which is never shut down.
+     */
+    public static synchronized MonitoredScheduledExecutor getScheduledExecutor()
+    {
+        if(sScheduledExecutor == null)
+            sScheduledExecutor = new MonitoredScheduledExecutor("ScheduledThread", SCHEDULED_THREADS
+                    , Process.THREAD_PRIORITY_BACKGROUND);
+        return sScheduledExecutor;
+    }
+
+    /**
+     * @return
+     * The number of threads of the role's pool work should be spread over at most.
+     */
+    public static int getMaxThreads(Context context, Role role)
+    {
+        return getExecutor(context, role).getMaximumPoolSize();
+    }
+
+    /**
+     * Changes the number of threads of the role's pool, if it has been created.  Work already running
+     * is left alone, extra threads go once idle.
+     *
+     * @param role
+     * The kind of work.
+     * @param nThreads
+     * The new maximum number of threads, at least 1.
+     */
+    public static synchronized void resize(Role role, int nThreads)
+    {
+        MonitoredExecutor executor = sExecutors.get(role);
+        if(executor == null)
+            return;
+        nThreads = Math.max(1, nThreads);
+        // the maximum may never be below the core size.
+        if(nThreads > executor.getMaximumPoolSize())
+        {
+            executor.setMaximumPoolSize(nThreads);
+            executor.setCorePoolSize(nThreads);
+        }
+        else
+        {
+            executor.setCorePoolSize(nThreads);
+            executor.setMaximumPoolSize(nThreads);
+        }
+    }
+
+    /**
+     * @return
+     * The pools created so far, for their utilization and queue depths.
+     */
+    public static synchronized List<MonitoredPool> getExecutors()
+    {
+        List<MonitoredPool> pools = new ArrayList<MonitoredPool>(sExecutors.values());
+        if(sScheduledExecutor != null)
+            pools.add(sScheduledExecutor);
+        return pools;
+    }
+}
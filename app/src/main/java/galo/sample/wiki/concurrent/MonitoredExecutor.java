@@ -0,0 +1,107 @@
+package galo.sample.wiki.concurrent;
+
+import android.os.Process;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of threads, created when needed and let go of when idle, running at a given thread
+ * priority, which keeps track of how busy it is and how much work is waiting for a thread.
+ *
+ * This is thread-safe.
+ */
+public class MonitoredExecutor extends ThreadPoolExecutor implements MonitoredPool
+{
+    private static final long IDLE_THREAD_TIMEOUT_SEC = 30;
+
+    private final String mName;
+    private final PoolStats mStats = new PoolStats();
+
+    /**
+     *
+     * @param name
+     * The name of the pool, which its threads are named after.
+     * @param nThreads
+     * The maximum number of threads.
+     * @param threadPriority
+     * The priority of the threads, one of the {@link Process} THREAD_PRIORITY constants.
+     */
+    public MonitoredExecutor(String name, int nThreads, int threadPriority)
+    {
+        super(Math.max(1, nThreads), Math.max(1, nThreads), IDLE_THREAD_TIMEOUT_SEC, TimeUnit.SECONDS
+                , new LinkedBlockingQueue<Runnable>(), new PriorityThreadFactory(name, threadPriority));
+        if(name == null)
+            throw new NullPointerException("The name cannot be null.");
+        mName = name;
+        // let the threads go while there is nothing to do.
+        allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable command)
+    {
+        super.execute(command);
+        mStats.onQueued(getQueue().size());
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r)
+    {
+        super.beforeExecute(t, r);
+        mStats.beforeExecute();
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t)
+    {
+        mStats.afterExecute();
+        super.afterExecute(r, t);
+    }
+
+    @Override
+    public String getName()
+    {
+        return mName;
+    }
+
+    @Override
+    public float getUtilization()
+    {
+        return mStats.getUtilization(getMaximumPoolSize());
+    }
+
+    @Override
+    public float getAverageUtilization()
+    {
+        return mStats.getAverageUtilization(getMaximumPoolSize());
+    }
+
+    @Override
+    public int getPeakRunningCount()
+    {
+        return mStats.getPeakRunningCount();
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        return getQueue().size();
+    }
+
+    @Override
+    public int getPeakQueueDepth()
+    {
+        return mStats.getPeakQueueDepth();
+    }
+
+    @Override
+    public String toString()
+    {
+        return mName + "[threads=" + getPoolSize() + "/" + getMaximumPoolSize()
+                + ", running=" + mStats.getRunningCount()
+                + ", queued=" + getQueueDepth()
+                + ", completed=" + getCompletedTaskCount() + "]";
+    }
+}
@@ -0,0 +1,41 @@
+package galo.sample.wiki.concurrent;
+
+/**
+ * A pool of threads of the {@link ExecutorRegistry} that keeps track of how busy it is and how much
+ * work is waiting for a thread.
+ */
+public interface MonitoredPool
+{
+    String getName();
+
+    /**
+     * @return
+     * The fraction of the pool's threads running work right now, from 0 to 1.
+     */
+    float getUtilization();
+
+    /**
+     * @return
+     * The fraction of the pool's thread time, since it was created, spent running work, from 0 to 1.
+     * Work still running is not counted until it completes.
+     */
+    float getAverageUtilization();
+
+    /**
+     * @return
+     * The most threads that have run work at the same time.
+     */
+    int getPeakRunningCount();
+
+    /**
+     * @return
+     * The number of pieces of work waiting for a thread, or for their time to come.
+     */
+    int getQueueDepth();
+
+    /**
+     * @return
+     * The most pieces of work that have waited at the same time.
+     */
+    int getPeakQueueDepth();
+}
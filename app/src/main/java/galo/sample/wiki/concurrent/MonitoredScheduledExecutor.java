@@ -0,0 +1,118 @@
+package galo.sample.wiki.concurrent;
+
+import android.os.Process;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed number of threads, created when needed and let go of when idle, running work after a
+ * delay at a given thread priority, which keeps track of how busy they are and how much work is
+ * waiting, delayed work included.
+ *
+ * This is thread-safe.
+ */
+public class MonitoredScheduledExecutor extends ScheduledThreadPoolExecutor implements MonitoredPool
+{
+    private static final long IDLE_THREAD_TIMEOUT_SEC = 30;
+
+    private final String mName;
+    private final PoolStats mStats = new PoolStats();
+
+    /**
+     *
+     * @param name
+     * The name of the pool, which its threads are named after.
+     * @param nThreads
+     * The number of threads.
+     * @param threadPriority
+     * The priority of the threads, one of the {@link Process} THREAD_PRIORITY constants.
+     */
+    public MonitoredScheduledExecutor(String name, int nThreads, int threadPriority)
+    {
+        super(Math.max(1, nThreads), new PriorityThreadFactory(name, threadPriority));
+        if(name == null)
+            throw new NullPointerException("The name cannot be null.");
+        mName = name;
+        // let the threads go while there is nothing to do.
+        setKeepAliveTime(IDLE_THREAD_TIMEOUT_SEC, TimeUnit.SECONDS);
+        allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+    {
+        ScheduledFuture<?> future = super.schedule(command, delay, unit);
+        mStats.onQueued(getQueue().size());
+        return future;
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit)
+    {
+        ScheduledFuture<V> future = super.schedule(callable, delay, unit);
+        mStats.onQueued(getQueue().size());
+        return future;
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r)
+    {
+        super.beforeExecute(t, r);
+        mStats.beforeExecute();
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t)
+    {
+        mStats.afterExecute();
+        super.afterExecute(r, t);
+    }
+
+    @Override
+    public String getName()
+    {
+        return mName;
+    }
+
+    @Override
+    public float getUtilization()
+    {
+        return mStats.getUtilization(getCorePoolSize());
+    }
+
+    @Override
+    public float getAverageUtilization()
+    {
+        return mStats.getAverageUtilization(getCorePoolSize());
+    }
+
+    @Override
+    public int getPeakRunningCount()
+    {
+        return mStats.getPeakRunningCount();
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        return getQueue().size();
+    }
+
+    @Override
+    public int getPeakQueueDepth()
+    {
+        return mStats.getPeakQueueDepth();
+    }
+
+    @Override
+    public String toString()
+    {
+        return mName + "[threads=" + getPoolSize() + "/" + getCorePoolSize()
+                + ", running=" + mStats.getRunningCount()
+                + ", queued=" + getQueueDepth()
+                + ", completed=" + getCompletedTaskCount() + "]";
+    }
+}
@@ -0,0 +1,87 @@
+package galo.sample.wiki.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bookkeeping behind a {@link MonitoredPool}: how much work runs, for how long, and how much waits.
+ *
+ * This is thread-safe.
+ */
+class PoolStats
+{
+    private final AtomicInteger mRunningCount = new AtomicInteger(),
+                                mPeakRunningCount = new AtomicInteger(),
+                                mPeakQueueDepth = new AtomicInteger();
+    private final AtomicLong mBusyNanos = new AtomicLong();
+    private final ThreadLocal<Long> mStartNanos = new ThreadLocal<Long>();
+    private final long mCreatedNanos = System.nanoTime();
+
+    /**
+     * Called on the pool's thread before it runs a piece of work.
+     */
+    void beforeExecute()
+    {
+        raiseTo(mPeakRunningCount, mRunningCount.incrementAndGet());
+        mStartNanos.set(System.nanoTime());
+    }
+
+    /**
+     * Called on the pool's thread once it has run a piece of work.
+     */
+    void afterExecute()
+    {
+        Long startNanos = mStartNanos.get();
+        if(startNanos != null)
+            mBusyNanos.addAndGet(System.nanoTime() - startNanos);
+        mRunningCount.decrementAndGet();
+    }
+
+    /**
+     * Called once work has been queued.
+     *
+     * @param queueDepth
+     * The number of pieces of work waiting now.
+     */
+    void onQueued(int queueDepth)
+    {
+        raiseTo(mPeakQueueDepth, queueDepth);
+    }
+
+    private static void raiseTo(AtomicInteger peak, int value)
+    {
+        int current;
+        while(value > (current = peak.get()) && !peak.compareAndSet(current, value))
+        {
+            // lost the race to another thread, try again.
+        }
+    }
+
+    int getRunningCount()
+    {
+        return mRunningCount.get();
+    }
+
+    float getUtilization(int nThreads)
+    {
+        return (float) mRunningCount.get() / Math.max(1, nThreads);
+    }
+
+    float getAverageUtilization(int nThreads)
+    {
+        long elapsedNanos = System.nanoTime() - mCreatedNanos;
+        if(elapsedNanos <= 0)
+            return 0;
+        return Math.min(1f, (float) mBusyNanos.get() / ((float) elapsedNanos * Math.max(1, nThreads)));
+    }
+
+    int getPeakRunningCount()
+    {
+        return mPeakRunningCount.get();
+    }
+
+    int getPeakQueueDepth()
+    {
+        return mPeakQueueDepth.get();
+    }
+}
@@ -0,0 +1,189 @@
+package galo.sample.wiki.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs work on pages through a backing executor in the order of the pages' rank in a
+ * {@link Viewport}, rather than in the order the work was submitted.  Pending work is not kept sorted:
+ * whenever a thread becomes free the best ranked work is picked using the viewport as it is at that
+ * moment, so scrolling re-ranks everything pending without requeueing any of it.
+ *
+ * At most {@code maxConcurrent} runnables are handed to the backing executor at any time, each of
+ * which keeps running pending work until there is none left, so the backing executor's own queue
+ * never decides the order.
+ *
+ * This is thread-safe.
+ */
+public class PriorityDispatcher
+{
+    private final Executor mExecutor;
+    private final int mMaxConcurrent;
+    private volatile Viewport mViewport;
+    private final List<Task> mPending = new ArrayList<Task>();
+    private int mWorkerCount;
+    private long mNextSequence;
+
+    /**
+     *
+     * @param executor
+     * The executor the work runs on.
+     * @param maxConcurrent
+     * The maximum number of pieces of work running at the same time, usually the number of threads of
+     * the executor.
+     * @param viewport
+     * The viewport ranking the work.
+     */
+    public PriorityDispatcher(Executor executor, int maxConcurrent, Viewport viewport)
+    {
+        if(executor == null)
+            throw new NullPointerException("The executor cannot be null.");
+        if(viewport == null)
+            throw new NullPointerException("The viewport cannot be null.");
+        mExecutor = executor;
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+        mViewport = viewport;
+    }
+
+    /**
+     * Queues work on a page.
+     *
+     * @param pageIndex
+     * The index of the page the work is for, which decides its rank.
+     * @param work
+     * The work.
+     * @throws RejectedExecutionException
+     * If the backing executor has been shut down.
+     */
+    public void execute(int pageIndex, Runnable work)
+    {
+        boolean bStartWorker;
+        synchronized (this)
+        {
+            mPending.add(new Task(pageIndex, mNextSequence++, work));
+            bStartWorker = mWorkerCount < mMaxConcurrent;
+            if(bStartWorker)
+                mWorkerCount++;
+        }
+        if(bStartWorker)
+        {
+            try
+            {
+                mExecutor.execute(mWorker);
+            }
+            catch (RejectedExecutionException e)
+            {
+                synchronized (this)
+                {
+                    mWorkerCount--;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Replaces the viewport ranking the work, taking effect the next time work is picked.
+     *
+     * @param viewport
+     * The new viewport.
+     */
+    public void setViewport(Viewport viewport)
+    {
+        if(viewport == null)
+            throw new NullPointerException("The viewport cannot be null.");
+        mViewport = viewport;
+    }
+
+    /**
+     * Drops all the work that has not started yet.
+     *
+     * @return
+     * The number of pieces of work dropped.
+     */
+    public synchronized int clear()
+    {
+        int count = mPending.size();
+        mPending.clear();
+        return count;
+    }
+
+    public synchronized int getPendingCount()
+    {
+        return mPending.size();
+    }
+
+    private synchronized Task pollBest()
+    {
+        int size = mPending.size();
+        if(size == 0)
+        {
+            mWorkerCount--;
+            return null;
+        }
+        Viewport viewport = mViewport;
+        int bestPosition = 0;
+        long bestRank = Long.MAX_VALUE;
+        for(int i = 0; i < size; i++)
+        {
+            Task task = mPending.get(i);
+            long rank = viewport.rank(task.pageIndex);
+            if(rank < bestRank || (rank == bestRank && task.sequence < mPending.get(bestPosition).sequence))
+            {
+                bestRank = rank;
+                bestPosition = i;
+            }
+        }
+        // the order of the pending list does not matter, move the last one into the gap.
+        Task best = mPending.get(bestPosition);
+        mPending.set(bestPosition, mPending.get(size - 1));
+        mPending.remove(size - 1);
+        return best;
+    }
+
+    private final Runnable mWorker = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            Task task;
+            while((task = pollBest()) != null)
+            {
+                try
+                {
+                    task.work.run();
+                }
+                catch (RuntimeException e)
+                {
+                    // keep the worker alive for the rest of the work.
+                    e.printStackTrace();
+                }
+                if(Thread.currentThread().isInterrupted())
+                {
+                    // the backing executor is shutting down, give the thread back.
+                    synchronized (PriorityDispatcher.this)
+                    {
+                        mWorkerCount--;
+                    }
+                    return;
+                }
+            }
+        }
+    };
+
+    private static final class Task
+    {
+        final int pageIndex;
+        final long sequence;
+        final Runnable work;
+
+        Task(int pageIndex, long sequence, Runnable work)
+        {
+            this.pageIndex = pageIndex;
+            this.sequence = sequence;
+            this.work = work;
+        }
+    }
+}
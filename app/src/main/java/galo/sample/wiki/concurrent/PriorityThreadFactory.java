@@ -0,0 +1,44 @@
+package galo.sample.wiki.concurrent;
+
+import android.os.Process;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates numbered threads running at a given Linux thread priority.
+ */
+class PriorityThreadFactory implements ThreadFactory
+{
+    private final String mName;
+    private final int mThreadPriority;
+    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+    /**
+     *
+     * @param name
+     * The name the threads are named after.
+     * @param threadPriority
+     * The priority of the threads, one of the {@link Process} THREAD_PRIORITY constants.
+     */
+    PriorityThreadFactory(String name, int threadPriority)
+    {
+        mName = name;
+        mThreadPriority = threadPriority;
+    }
+
+    @Override
+    public Thread newThread(final Runnable r)
+    {
+        return new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // the priority of the Linux thread, which is what the scheduler goes by.
+                Process.setThreadPriority(mThreadPriority);
+                r.run();
+            }
+        }, mName + "-" + mThreadCount.incrementAndGet());
+    }
+}
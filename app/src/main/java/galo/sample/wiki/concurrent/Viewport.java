@@ -0,0 +1,95 @@
+package galo.sample.wiki.concurrent;
+
+/**
+ * The range of page indices currently visible in a grid, along with the direction it was last
+ * scrolled in, used to rank work on pages by how soon the user will see them.  Work on visible pages
+ * ranks first, then work on the pages just past the visible ones in the direction of scrolling, then
+ * everything else by its distance to the visible pages.
+ *
+ * Updated on the Main Looper thread, ranked from any thread.
+ */
+public class Viewport
+{
+    public static final int DEFAULT_PREFETCH_WINDOW = 12;
+
+    private static final long TIER_VISIBLE = 0,
+                              TIER_PREFETCH = 1,
+                              TIER_OTHER = 2;
+    private static final long TIER_SPAN = Integer.MAX_VALUE;
+
+    private final int mPrefetchWindow;
+    private int mFirstVisibleIndex = -1,
+                mLastVisibleIndex = -1;
+    // 1 when scrolling towards higher indices, -1 towards lower ones.
+    private int mDirection = 1;
+
+    public Viewport()
+    {
+        this(DEFAULT_PREFETCH_WINDOW);
+    }
+
+    /**
+     *
+     * @param prefetchWindow
+     * The number of pages past the visible ones, in the direction of scrolling, that rank right after
+     * the visible ones.
+     */
+    public Viewport(int prefetchWindow)
+    {
+        mPrefetchWindow = Math.max(0, prefetchWindow);
+    }
+
+    /**
+     * Sets the visible pages, usually from a scroll listener.
+     *
+     * @param firstVisibleIndex
+     * The index of the first visible page, see {@link galo.sample.wiki.api.Page#getIndex()}.
+     * @param visibleCount
+     * The number of visible pages, 0 if none.
+     */
+    public synchronized void update(int firstVisibleIndex, int visibleCount)
+    {
+        if(visibleCount <= 0)
+        {
+            mFirstVisibleIndex = mLastVisibleIndex = -1;
+            return;
+        }
+        if(mFirstVisibleIndex >= 0 && firstVisibleIndex != mFirstVisibleIndex)
+            mDirection = firstVisibleIndex > mFirstVisibleIndex ? 1 : -1;
+        mFirstVisibleIndex = firstVisibleIndex;
+        mLastVisibleIndex = firstVisibleIndex + visibleCount - 1;
+    }
+
+    /**
+     * Ranks work on a page, the lower the sooner it should be done.  Ranks are computed from the
+     * viewport as it is at the time of the call, so they change as the user scrolls.
+     *
+     * @param pageIndex
+     * The index of the page.
+     * @return
+     * The rank of the page.
+     */
+    public synchronized long rank(int pageIndex)
+    {
+        // nothing known to be visible yet, keep the result order.
+        if(mFirstVisibleIndex < 0)
+            return TIER_OTHER * TIER_SPAN + Math.max(0, pageIndex);
+        if(pageIndex >= mFirstVisibleIndex && pageIndex <= mLastVisibleIndex)
+            return TIER_VISIBLE * TIER_SPAN + (pageIndex - mFirstVisibleIndex);
+
+        int distance = pageIndex > mLastVisibleIndex ? pageIndex - mLastVisibleIndex : mFirstVisibleIndex - pageIndex;
+        boolean bAhead = (pageIndex > mLastVisibleIndex) == (mDirection > 0);
+        if(bAhead && distance <= mPrefetchWindow)
+            return TIER_PREFETCH * TIER_SPAN + distance;
+        return TIER_OTHER * TIER_SPAN + distance;
+    }
+
+    /**
+     * @return
+     * True if the page is currently visible.
+     */
+    public synchronized boolean isVisible(int pageIndex)
+    {
+        return mFirstVisibleIndex >= 0 && pageIndex >= mFirstVisibleIndex && pageIndex <= mLastVisibleIndex;
+    }
+}
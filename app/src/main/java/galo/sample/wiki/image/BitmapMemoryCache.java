@@ -0,0 +1,316 @@
+package galo.sample.wiki.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import galo.sample.wiki.util.ResourceProfile;
+
+/**
+ * A process-wide cache of decoded thumbnails, keyed by thumbnail url and decode size, bounded by the
+ * bytes of bitmap memory it holds, so that a page showing up again, such as when a term is typed again,
+ * is not decoded again.
+ *
+ * Bitmaps are borrowed as {@link CachedBitmap}s, which pin them: a borrowed bitmap is never evicted
+ * from under the view showing it, and an evicted one is only let go of once given back.
+ *
+ * Admission is TinyLFU-like: once full, a new bitmap only gets in by evicting least recently used
+ * bitmaps that have been asked for less often than it, estimated by a {@link FrequencySketch} of
+ * recent look ups.  Otherwise it is not cached at all and is let go of once given back, so that the
+ * results of a one-off search do not flush the thumbnails the user keeps coming back to.
+ *
+ * Bitmaps let go of are not recycled but given to a {@link BitmapPool}, for later decodes to reuse.
+ *
+ * This is thread-safe.
+ */
+public class BitmapMemoryCache
+{
+    // of the app's heap, most of the rest is for the views and the rest of the app.
+    private static final int HEAP_FRACTION = 8;
+    private static final int TYPICAL_THUMBNAIL_BYTES = 96 * 96 * 4;
+    // of the cache's size, enough for the bitmaps of a page set or two being replaced.
+    private static final int POOL_SIZE_FRACTION = 4;
+
+    private static BitmapMemoryCache sInstance;
+
+    private final long mMaxSizeBytes;
+    // least recently used first.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private final FrequencySketch mSketch;
+    private final BitmapPool mPool;
+    private long mSizeBytes;
+    private long mHitCount,
+                 mMissCount,
+                 mRejectedCount,
+                 mEvictionCount;
+
+    /**
+     * Retrieves the cache shared by the whole process, creating it on first use, sized from the limit of
+     * the app's heap, see {@link ResourceProfile}.
+     *
+     * @param context
+     * Any context, only used the first time to profile the device.
+     * @return
+     * The process-wide cache.
+     */
+    public static synchronized BitmapMemoryCache getInstance(Context context)
+    {
+        if(sInstance == null)
+        {
+            long maxSizeBytes = ResourceProfile.getInstance(context).getHeapLimitBytes() / HEAP_FRACTION;
+            sInstance = new BitmapMemoryCache(maxSizeBytes, new BitmapPool(maxSizeBytes / POOL_SIZE_FRACTION));
+        }
+        return sInstance;
+    }
+
+    /**
+     *
+     * @param maxSizeBytes
+     * The maximum number of bytes of bitmap memory the cached bitmaps may take, not counting those
+     * evicted or rejected but still borrowed.
+     * @param pool
+     * The pool bitmaps let go of are given to.
+     */
+    public BitmapMemoryCache(long maxSizeBytes, BitmapPool pool)
+    {
+        if(pool == null)
+            throw new NullPointerException("The bitmap pool cannot be null.");
+        mPool = pool;
+        mMaxSizeBytes = Math.max(TYPICAL_THUMBNAIL_BYTES, maxSizeBytes);
+        mSketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE / 16, mMaxSizeBytes / TYPICAL_THUMBNAIL_BYTES));
+    }
+
+    /**
+     * @param url
+     * The url of the image.
+     * @param width
+     * The width the image is decoded for, 0 for its full size.
+     * @param height
+     * The height the image is decoded for, 0 for its full size.
+     * @return
+     * The key of the image decoded for that size.
+     */
+    public static String createKey(String url, int width, int height)
+    {
+        return width + "x" + height + ":" + url;
+    }
+
+    /**
+     * Borrows the bitmap of the key, if cached.  Counts as an occurrence of the key either way, for
+     * the admission policy.
+     *
+     * @return
+     * The borrowed bitmap, to be released once no longer displayed, or null if not cached.
+     */
+    public synchronized CachedBitmap borrow(String key)
+    {
+        mSketch.increment(key);
+        Entry entry = mEntries.get(key);
+        if(entry == null)
+        {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        entry.refCount++;
+        return new CachedBitmap(this, entry);
+    }
+
+    /**
+     * Offers a newly decoded bitmap to the cache, which admits it if there is room or if it is asked
+     * for more often than the bitmaps it would evict.  Either way the caller gets it back borrowed.
+     *
+     * @param key
+     * The key created by {@link #createKey(String, int, int)}.
+     * @param bitmap
+     * The bitmap, which the cache owns from now on.
+     * @return
+     * The bitmap borrowed, to be released once no longer displayed.  If another bitmap of the key was
+     * cached in the meantime, that one is returned and the given one let go of.
+     */
+    public CachedBitmap put(String key, Bitmap bitmap)
+    {
+        Bitmap duplicate = null;
+        CachedBitmap borrowed;
+        synchronized (this)
+        {
+            Entry entry = mEntries.get(key);
+            if(entry != null)
+                duplicate = bitmap;
+            else
+            {
+                entry = new Entry(key, bitmap);
+                if(admit(entry))
+                {
+                    entry.bCached = true;
+                    mEntries.put(key, entry);
+                    mSizeBytes += entry.bytes;
+                }
+                else
+                    mRejectedCount++;
+            }
+            entry.refCount++;
+            borrowed = new CachedBitmap(this, entry);
+        }
+        if(duplicate != null)
+            dispose(duplicate);
+        return borrowed;
+    }
+
+    /**
+     * Makes room for the candidate, evicting least recently used bitmaps that are not borrowed and are
+     * less frequent than the candidate.  Must hold the lock.
+     *
+     * @return
+     * True if the candidate fits now.
+     */
+    private boolean admit(Entry candidate)
+    {
+        if(candidate.bytes > mMaxSizeBytes)
+            return false;
+        long needed = mSizeBytes + candidate.bytes - mMaxSizeBytes;
+        if(needed <= 0)
+            return true;
+
+        // find the victims first, nothing is evicted unless the candidate gets in.
+        int candidateFrequency = mSketch.frequency(candidate.key);
+        long freed = 0;
+        for(Entry victim : mEntries.values())
+        {
+            if(freed >= needed)
+                break;
+            if(victim.refCount > 0)
+                continue;
+            if(mSketch.frequency(victim.key) >= candidateFrequency)
+                return false;
+            freed += victim.bytes;
+        }
+        if(freed < needed)
+            return false;
+
+        freed = 0;
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while(freed < needed && iterator.hasNext())
+        {
+            Entry victim = iterator.next().getValue();
+            if(victim.refCount > 0)
+                continue;
+            iterator.remove();
+            victim.bCached = false;
+            mSizeBytes -= victim.bytes;
+            freed += victim.bytes;
+            mEvictionCount++;
+            dispose(victim.bitmap);
+        }
+        return true;
+    }
+
+    void release(Entry entry)
+    {
+        boolean bDispose;
+        synchronized (this)
+        {
+            bDispose = --entry.refCount == 0 && !entry.bCached;
+        }
+        if(bDispose)
+            dispose(entry.bitmap);
+    }
+
+    /**
+     * Lets go of a bitmap nothing references anymore, into the pool.
+     */
+    private void dispose(Bitmap bitmap)
+    {
+        mPool.put(bitmap);
+    }
+
+    /**
+     * @return
+     * The pool bitmaps let go of are given to, for decodes to reuse them.
+     */
+    public BitmapPool getPool()
+    {
+        return mPool;
+    }
+
+    /**
+     * Evicts every bitmap not borrowed, i.e. when the system runs low on memory.
+     */
+    public synchronized void trimToBorrowed()
+    {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while(iterator.hasNext())
+        {
+            Entry entry = iterator.next();
+            if(entry.refCount > 0)
+                continue;
+            iterator.remove();
+            entry.bCached = false;
+            mSizeBytes -= entry.bytes;
+            mEvictionCount++;
+            dispose(entry.bitmap);
+        }
+    }
+
+    /**
+     * @return
+     * The number of bytes of bitmap memory taken by the cached bitmaps.
+     */
+    public synchronized long getSizeBytes()
+    {
+        return mSizeBytes;
+    }
+
+    public long getMaxSizeBytes()
+    {
+        return mMaxSizeBytes;
+    }
+
+    public synchronized long getHitCount()
+    {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return mMissCount;
+    }
+
+    /**
+     * @return
+     * The number of decoded bitmaps not admitted, because they were asked for less often than those
+     * they would have evicted.
+     */
+    public synchronized long getRejectedCount()
+    {
+        return mRejectedCount;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return mEvictionCount;
+    }
+
+    /**
+     * A bitmap and how many borrowers it has.  Fields other than the key and bitmap are guarded by the
+     * cache.
+     */
+    static final class Entry
+    {
+        final String key;
+        final Bitmap bitmap;
+        final long bytes;
+        int refCount;
+        boolean bCached;
+
+        Entry(String key, Bitmap bitmap)
+        {
+            this.key = key;
+            this.bitmap = bitmap;
+            this.bytes = BitmapPool.allocationBytesOf(bitmap);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package galo.sample.wiki.image;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of equally sized byte buffers, so that copying data does not allocate a new buffer each time.
+ * Buffers are created on demand and at most a given number are kept around once released.
+ *
+ * This is thread-safe.
+ */
+class ByteBufferPool
+{
+    private final int mBufferSize,
+                      mMaxPooled;
+    private final ArrayDeque<ByteBuffer> mPool = new ArrayDeque<ByteBuffer>();
+    private long mAllocatedCount,
+                 mAcquiredCount;
+
+    /**
+     *
+     * @param bufferSize
+     * The capacity of every buffer.
+     * @param maxPooled
+     * The maximum number of released buffers kept for reuse, the rest are left to the garbage collector.
+     */
+    ByteBufferPool(int bufferSize, int maxPooled)
+    {
+        mBufferSize = Math.max(1, bufferSize);
+        mMaxPooled = Math.max(0, maxPooled);
+    }
+
+    /**
+     * @return
+     * A cleared buffer, which should be handed back through {@link #release(ByteBuffer)} once done.
+     */
+    synchronized ByteBuffer acquire()
+    {
+        mAcquiredCount++;
+        ByteBuffer buffer = mPool.poll();
+        if(buffer == null)
+        {
+            mAllocatedCount++;
+            // a heap buffer, its backing array can be read into straight from a stream.
+            buffer = ByteBuffer.allocate(mBufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    synchronized void release(ByteBuffer buffer)
+    {
+        if(buffer != null && buffer.capacity() == mBufferSize && mPool.size() < mMaxPooled)
+            mPool.push(buffer);
+    }
+
+    int getBufferSize()
+    {
+        return mBufferSize;
+    }
+
+    /**
+     * @return
+     * The number of buffers created, as opposed to reused.
+     */
+    synchronized long getAllocatedCount()
+    {
+        return mAllocatedCount;
+    }
+
+    synchronized long getAcquiredCount()
+    {
+        return mAcquiredCount;
+    }
+}
@@ -0,0 +1,40 @@
+package galo.sample.wiki.image;
+
+import android.graphics.Bitmap;
+
+/**
+ * A bitmap borrowed from a {@link BitmapMemoryCache}.  The bitmap may be displayed until
+ * {@link #release()} is called, after which the cache may reuse or recycle it, so it must then no
+ * longer be drawn.  Each borrowed reference must be released exactly once, on any thread.
+ */
+public final class CachedBitmap
+{
+    private final BitmapMemoryCache mCache;
+    private final BitmapMemoryCache.Entry mEntry;
+    private boolean bReleased;
+
+    CachedBitmap(BitmapMemoryCache cache, BitmapMemoryCache.Entry entry)
+    {
+        mCache = cache;
+        mEntry = entry;
+    }
+
+    public Bitmap getBitmap()
+    {
+        return mEntry.bitmap;
+    }
+
+    /**
+     * Gives the bitmap back to the cache.  Further calls do nothing.
+     */
+    public void release()
+    {
+        synchronized (this)
+        {
+            if(bReleased)
+                return;
+            bReleased = true;
+        }
+        mCache.release(mEntry);
+    }
+}
@@ -0,0 +1,92 @@
+package galo.sample.wiki.image;
+
+/**
+ * Estimates how often keys have been seen recently, in a fixed amount of memory, for
+ * {@link BitmapMemoryCache}'s admission policy.  It is a count-min sketch: every key increments a
+ * counter in each of several rows and its estimate is the smallest of its counters, which other keys
+ * sharing them can only make too high.  Counters saturate at 15 and are all halved once as many
+ * increments as ten times the expected number of keys have been made, so that the estimates follow
+ * what is popular now rather than what was popular once.
+ *
+ * This is not thread-safe.
+ */
+class FrequencySketch
+{
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb3f8f2c1, 0x8fd5e7a1, 0x5e2c6a1d};
+
+    private final int[][] mRows;
+    private final int mMask;
+    private final int mSampleSize;
+    private int mAdditions;
+
+    /**
+     *
+     * @param expectedKeys
+     * About how many keys are held by the cache, which sizes the sketch.
+     */
+    FrequencySketch(int expectedKeys)
+    {
+        int width = Integer.highestOneBit(Math.max(16, expectedKeys * 4) - 1) << 1;
+        mRows = new int[DEPTH][width];
+        mMask = width - 1;
+        mSampleSize = Math.max(160, expectedKeys * 10);
+    }
+
+    /**
+     * Counts one more occurrence of the key.
+     */
+    void increment(String key)
+    {
+        int hash = key.hashCode();
+        int min = Integer.MAX_VALUE;
+        int[] indexes = new int[DEPTH];
+        for(int i = 0; i < DEPTH; i++)
+        {
+            indexes[i] = indexOf(hash, i);
+            min = Math.min(min, mRows[i][indexes[i]]);
+        }
+        if(min >= MAX_COUNT)
+            return;
+        // conservative update: only the counters at the minimum are raised, which keeps the
+        // over-estimates from colliding keys down.
+        for(int i = 0; i < DEPTH; i++)
+        {
+            if(mRows[i][indexes[i]] == min)
+                mRows[i][indexes[i]]++;
+        }
+        if(++mAdditions >= mSampleSize)
+            age();
+    }
+
+    /**
+     * @return
+     * The estimated number of recent occurrences of the key.
+     */
+    int frequency(String key)
+    {
+        int hash = key.hashCode();
+        int min = Integer.MAX_VALUE;
+        for(int i = 0; i < DEPTH; i++)
+            min = Math.min(min, mRows[i][indexOf(hash, i)]);
+        return min;
+    }
+
+    private int indexOf(int hash, int row)
+    {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return h & mMask;
+    }
+
+    private void age()
+    {
+        for(int[] row : mRows)
+        {
+            for(int i = 0; i < row.length; i++)
+                row[i] >>>= 1;
+        }
+        mAdditions /= 2;
+    }
+}
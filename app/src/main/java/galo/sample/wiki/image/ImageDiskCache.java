@@ -0,0 +1,665 @@
+package galo.sample.wiki.image;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A size-bounded disk cache of files, evicting the least recently used ones first, whose state is
+ * kept in an append-only journal rather than rebuilt from the directory listing.
+ *
+ * Files are content addressed: each entry points to a blob named after the SHA-1 hash of its bytes,
+ * so identical files written under different keys are stored once.  A blob is deleted once no entry
+ * points to it anymore and only blobs count towards the size of the cache.  Blobs are spread over
+ * 256 subdirectories, by the first two characters of their hash, so no directory grows too large.
+ *
+ * The journal starts with a header followed by one line per operation:
+ * <pre>
+ *     DIRTY key              : the file for the key is being written.
+ *     CLEAN key blob size    : the file has been completely written, its bytes are in the blob,
+ *                              which is size bytes long.
+ *     READ key               : the file has been used, moving it to the most recently used end.
+ *     REMOVE key             : the file has been deleted, evicted or was never completed.
+ * </pre>
+ * Keys must not contain spaces.  Files are written to a temporary file which is renamed once
+ * complete, so an interrupted write never leaves a truncated blob behind.  An entry whose last line
+ * is DIRTY, because the process died while writing it, is discarded when the journal is read back.
+ *
+ * There is one cache per directory in the process, see {@link #forDirectory(File, long)}, since two
+ * caches sharing a journal would each rewrite it from under the other.
+ *
+ * This is thread-safe.  The journal is read lazily on first use, which must not happen on the Main
+ * Looper thread.
+ */
+class ImageDiskCache
+{
+    private static final String JOURNAL_FILE = "journal",
+                                JOURNAL_FILE_TMP = "journal.tmp",
+                                TMP_DIR = "tmp";
+    private static final String MAGIC = "galo.sample.wiki.ImageDiskCache",
+                                VERSION = "2",
+                                DIRTY = "DIRTY",
+                                CLEAN = "CLEAN",
+                                READ = "READ",
+                                REMOVE = "REMOVE",
+                                TMP_SUFFIX = ".tmp",
+                                CHARSET = "UTF-8";
+    // rewrite the journal once it holds this many more lines than there are entries.
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    // beyond this, uses from peek() only reorder the index in memory until the next write.
+    private static final int MAX_PENDING_READS = 512;
+
+    private static final Map<String, ImageDiskCache> sCaches = new HashMap<String, ImageDiskCache>();
+
+    private final File mDirectory;
+    private volatile long mMaxSizeBytes;
+    // in access order, least recently used first.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    // by content hash.
+    private final HashMap<String, Blob> mBlobs = new HashMap<String, Blob>();
+    private long mSizeBytes;
+    private int mRedundantOpCount;
+    private Writer mJournalWriter;
+    private boolean mInitialized;
+    private long mEvictionCount,
+                 mDedupCount,
+                 mDedupBytes;
+    // uses from peek(), journaled with the next write so that peeking never touches the disk.
+    private final List<String> mPendingReads = new ArrayList<String>();
+
+    /**
+     * Retrieves the process-wide cache of the directory, creating it on first use.  Never touches the
+     * disk.
+     *
+     * @param directory
+     * The directory holding the files and the journal, used by nothing but this cache.
+     * @param maxSizeBytes
+     * The size the files are trimmed to once a new file has been written, only used when the cache is
+     * created.
+     * @return
+     * The cache of the directory.
+     */
+    static ImageDiskCache forDirectory(File directory, long maxSizeBytes)
+    {
+        if(directory == null)
+            throw new NullPointerException("The directory cannot be null.");
+        String path = directory.getAbsolutePath();
+        synchronized (sCaches)
+        {
+            ImageDiskCache cache = sCaches.get(path);
+            if(cache == null)
+            {
+                cache = new ImageDiskCache(directory, maxSizeBytes);
+                sCaches.put(path, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     *
+     * @param directory
+     * The directory holding the files and the journal, used by nothing else.
+     * @param maxSizeBytes
+     * The size the files are trimmed to once a new file has been written.
+     */
+    private ImageDiskCache(File directory, long maxSizeBytes)
+    {
+        if(directory == null)
+            throw new NullPointerException("The directory cannot be null.");
+        mDirectory = directory;
+        mMaxSizeBytes = Math.max(1, maxSizeBytes);
+    }
+
+    /**
+     * Retrieves the completely written file for the key and marks it as recently used.
+     *
+     * @param key
+     * The key.
+     * @return
+     * The file or null if it is not in the cache.
+     */
+    synchronized File get(String key)
+    {
+        initialize();
+        Entry entry = mEntries.get(key);
+        if(entry == null || !entry.bClean)
+            return null;
+        File file = getBlobFile(entry.blob.hash);
+        if(!file.exists())
+        {
+            // deleted behind our back.
+            removeEntry(entry);
+            return null;
+        }
+        appendToJournal(READ + ' ' + key);
+        return file;
+    }
+
+    /**
+     * Looks the keys up in the in-memory index only, without touching the disk, which makes it safe
+     * to call on the Main Looper thread.  The files found are marked as recently used.  Nothing is
+     * found until the index has been loaded, see {@link #loadIndex()}.
+     *
+     * @param keys
+     * The keys to look up.
+     * @return
+     * For each key, its file if known to be completely written, otherwise null.
+     */
+    synchronized File[] peek(String[] keys)
+    {
+        File[] files = new File[keys.length];
+        if(!mInitialized)
+            return files;
+        for(int i = 0; i < keys.length; i++)
+        {
+            Entry entry = mEntries.get(keys[i]);
+            if(entry != null && entry.bClean)
+            {
+                files[i] = getBlobFile(entry.blob.hash);
+                if(mPendingReads.size() < MAX_PENDING_READS)
+                    mPendingReads.add(keys[i]);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Loads the index from the journal, if not already loaded.  Must not be called on the Main Looper
+     * thread.
+     */
+    synchronized void loadIndex()
+    {
+        initialize();
+    }
+
+    /**
+     * Starts writing the file of the key.  The returned temporary file must then be passed to either
+     * {@link #commit(String, File)} or {@link #abort(String, File)}.
+     *
+     * @param key
+     * The key.
+     * @return
+     * The temporary file to write to.
+     */
+    synchronized File beginWrite(String key)
+    {
+        initialize();
+        Entry entry = mEntries.get(key);
+        if(entry == null)
+            mEntries.put(key, new Entry(key));
+        else if(entry.bClean)
+        {
+            // replaced, the old blob is no longer used by this entry.
+            releaseBlob(entry.blob);
+            entry.blob = null;
+            entry.bClean = false;
+        }
+        appendToJournal(DIRTY + ' ' + key);
+        File tmpDir = new File(mDirectory, TMP_DIR);
+        if(!tmpDir.exists())
+            tmpDir.mkdirs();
+        return new File(tmpDir, key + TMP_SUFFIX);
+    }
+
+    /**
+     * Makes the completely written temporary file the file of the key, then evicts the least recently
+     * used files until the cache fits its maximum size.  If a blob with the same content is already
+     * stored, the temporary file is deleted and the key points to that blob instead.
+     *
+     * @param contentHash
+     * The SHA-1 hash of the temporary file's bytes, as a hexadecimal string.
+     * @return
+     * The file of the key, or null if the temporary file could not be renamed.
+     */
+    synchronized File commit(String key, File tmpFile, String contentHash)
+    {
+        initialize();
+        Entry entry = mEntries.get(key);
+        if(entry == null)
+        {
+            abort(key, tmpFile);
+            return null;
+        }
+        Blob blob = mBlobs.get(contentHash);
+        File blobFile = getBlobFile(contentHash);
+        if(blob != null && blobFile.exists())
+        {
+            tmpFile.delete();
+            mDedupCount++;
+            mDedupBytes += blob.sizeBytes;
+        }
+        else
+        {
+            // a known blob whose file went missing is simply written again.
+            File shardDir = blobFile.getParentFile();
+            if(!shardDir.exists())
+                shardDir.mkdirs();
+            if(!tmpFile.renameTo(blobFile))
+            {
+                abort(key, tmpFile);
+                return null;
+            }
+            if(blob == null)
+            {
+                blob = new Blob(contentHash, blobFile.length());
+                mBlobs.put(contentHash, blob);
+                mSizeBytes += blob.sizeBytes;
+            }
+        }
+        blob.refCount++;
+        entry.blob = blob;
+        entry.bClean = true;
+        appendToJournal(CLEAN + ' ' + key + ' ' + blob.hash + ' ' + blob.sizeBytes);
+        trimToSize(key);
+        return blobFile;
+    }
+
+    /**
+     * Gives up on writing the file of the key, deleting the temporary file.
+     */
+    synchronized void abort(String key, File tmpFile)
+    {
+        initialize();
+        tmpFile.delete();
+        Entry entry = mEntries.get(key);
+        if(entry != null && !entry.bClean)
+            removeEntry(entry);
+    }
+
+    /**
+     * Deletes every file along with the journal.
+     */
+    synchronized void clear()
+    {
+        closeJournal();
+        deleteContents(mDirectory);
+        mEntries.clear();
+        mBlobs.clear();
+        mPendingReads.clear();
+        mSizeBytes = 0;
+        mRedundantOpCount = 0;
+        mInitialized = false;
+    }
+
+    synchronized long getSizeBytes()
+    {
+        initialize();
+        return mSizeBytes;
+    }
+
+    long getMaxSizeBytes()
+    {
+        return mMaxSizeBytes;
+    }
+
+    /**
+     * @param maxSizeBytes
+     * The size the files are trimmed to from the next file written on.
+     */
+    void setMaxSizeBytes(long maxSizeBytes)
+    {
+        mMaxSizeBytes = Math.max(1, maxSizeBytes);
+    }
+
+    synchronized long getEvictionCount()
+    {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return
+     * The number of files that were not stored since a blob with the same content already was.
+     */
+    synchronized long getDedupCount()
+    {
+        return mDedupCount;
+    }
+
+    /**
+     * @return
+     * The number of bytes not stored thanks to files sharing blobs.
+     */
+    synchronized long getDedupBytes()
+    {
+        return mDedupBytes;
+    }
+
+    private File getBlobFile(String hash)
+    {
+        return new File(new File(mDirectory, hash.substring(0, 2)), hash);
+    }
+
+    private void releaseBlob(Blob blob)
+    {
+        if(blob != null && --blob.refCount <= 0)
+        {
+            mBlobs.remove(blob.hash);
+            getBlobFile(blob.hash).delete();
+            mSizeBytes -= blob.sizeBytes;
+        }
+    }
+
+    private static void deleteContents(File directory)
+    {
+        File[] files = directory.listFiles();
+        if(files != null)
+        {
+            for(File file : files)
+            {
+                if(file.isDirectory())
+                    deleteContents(file);
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used files, except the one of the key just written, until the cache
+     * fits its maximum size.
+     */
+    private void trimToSize(String keptKey)
+    {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while(mSizeBytes > mMaxSizeBytes && iterator.hasNext())
+        {
+            Entry entry = iterator.next();
+            // files being written are not the cache's to evict yet.
+            if(!entry.bClean || entry.key.equals(keptKey))
+                continue;
+            iterator.remove();
+            // only frees space once no other entry shares the blob.
+            releaseBlob(entry.blob);
+            mEvictionCount++;
+            appendToJournal(REMOVE + ' ' + entry.key);
+        }
+    }
+
+    private void removeEntry(Entry entry)
+    {
+        mEntries.remove(entry.key);
+        if(entry.bClean)
+            releaseBlob(entry.blob);
+        appendToJournal(REMOVE + ' ' + entry.key);
+    }
+
+    /**
+     * Reads the journal back, or starts a new one if there is none or it cannot be trusted, in which
+     * case whatever is in the directory is deleted.
+     */
+    private void initialize()
+    {
+        if(mInitialized)
+            return;
+        mInitialized = true;
+        if(!mDirectory.exists())
+            mDirectory.mkdirs();
+        new File(mDirectory, JOURNAL_FILE_TMP).delete();
+
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        boolean bRead = false;
+        if(journal.exists())
+        {
+            try
+            {
+                readJournal(journal);
+                bRead = true;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        if(!bRead)
+        {
+            // files written before there was a journal, or by a journal we cannot read, are unknown.
+            deleteContents(mDirectory);
+            mEntries.clear();
+            mBlobs.clear();
+            mSizeBytes = 0;
+        }
+        rebuildJournal();
+    }
+
+    private void readJournal(File journal) throws IOException
+    {
+        BufferedReader reader = null;
+        int lineCount = 0;
+        try
+        {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), CHARSET));
+            if(!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine()))
+                throw new IOException("Unknown journal header.");
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                lineCount++;
+                readJournalLine(line);
+            }
+        }
+        finally
+        {
+            if(reader != null)
+            {
+                try {
+                    reader.close();
+                } catch (IOException e) {/*do nothing*/}
+            }
+        }
+
+        // drop what the process died in the middle of writing.
+        List<Entry> incomplete = new ArrayList<Entry>();
+        for(Entry entry : mEntries.values())
+        {
+            if(!entry.bClean)
+                incomplete.add(entry);
+        }
+        for(Entry entry : incomplete)
+        {
+            mEntries.remove(entry.key);
+            new File(new File(mDirectory, TMP_DIR), entry.key + TMP_SUFFIX).delete();
+        }
+
+        // count the entries using each blob, deleting those no entry uses anymore.
+        for(Entry entry : mEntries.values())
+            entry.blob.refCount++;
+        mSizeBytes = 0;
+        Iterator<Blob> blobIterator = mBlobs.values().iterator();
+        while(blobIterator.hasNext())
+        {
+            Blob blob = blobIterator.next();
+            if(blob.refCount > 0)
+                mSizeBytes += blob.sizeBytes;
+            else
+            {
+                blobIterator.remove();
+                getBlobFile(blob.hash).delete();
+            }
+        }
+        mRedundantOpCount = lineCount - mEntries.size();
+    }
+
+    private void readJournalLine(String line) throws IOException
+    {
+        int firstSpace = line.indexOf(' ');
+        if(firstSpace <= 0)
+            throw new IOException("Corrupt journal line: " + line);
+        String op = line.substring(0, firstSpace);
+        String rest = line.substring(firstSpace + 1);
+        if(CLEAN.equals(op))
+        {
+            String[] parts = rest.split(" ");
+            if(parts.length != 3 || parts[1].length() < 2)
+                throw new IOException("Corrupt journal line: " + line);
+            Entry entry = mEntries.get(parts[0]);
+            if(entry == null)
+                mEntries.put(parts[0], entry = new Entry(parts[0]));
+            Blob blob = mBlobs.get(parts[1]);
+            if(blob == null)
+            {
+                try
+                {
+                    blob = new Blob(parts[1], Long.parseLong(parts[2]));
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IOException("Corrupt journal line: " + line);
+                }
+                mBlobs.put(blob.hash, blob);
+            }
+            // blobs are counted once the whole journal has been read.
+            entry.blob = blob;
+            entry.bClean = true;
+        }
+        else if(DIRTY.equals(op))
+        {
+            Entry entry = mEntries.get(rest);
+            if(entry == null)
+                mEntries.put(rest, new Entry(rest));
+            else
+            {
+                entry.blob = null;
+                entry.bClean = false;
+            }
+        }
+        else if(READ.equals(op))
+            mEntries.get(rest); // moves it to the most recently used end.
+        else if(REMOVE.equals(op))
+            mEntries.remove(rest);
+        else
+            throw new IOException("Corrupt journal line: " + line);
+    }
+
+    /**
+     * Writes a new journal holding only the current entries, replacing the old one atomically.
+     */
+    private void rebuildJournal()
+    {
+        closeJournal();
+        // the rewritten journal holds the access order as it is now.
+        mPendingReads.clear();
+        File journal = new File(mDirectory, JOURNAL_FILE),
+             journalTmp = new File(mDirectory, JOURNAL_FILE_TMP);
+        Writer writer = null;
+        boolean bWritten = false;
+        try
+        {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalTmp), CHARSET));
+            writer.write(MAGIC + '\n' + VERSION + '\n');
+            for(Entry entry : mEntries.values())
+            {
+                if(entry.bClean)
+                    writer.write(CLEAN + ' ' + entry.key + ' ' + entry.blob.hash + ' ' + entry.blob.sizeBytes + '\n');
+                else
+                    writer.write(DIRTY + ' ' + entry.key + '\n');
+            }
+            bWritten = true;
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if(writer != null)
+            {
+                try {
+                    writer.close();
+                } catch (IOException e) {/*do nothing*/}
+            }
+        }
+        if(bWritten && journalTmp.renameTo(journal))
+        {
+            mRedundantOpCount = 0;
+            openJournal(journal);
+        }
+        else
+            journalTmp.delete();
+    }
+
+    private void openJournal(File journal)
+    {
+        try
+        {
+            mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), CHARSET));
+        }
+        catch (IOException e)
+        {
+            // the cache keeps working in memory, it is only forgotten on the next start.
+            e.printStackTrace();
+            mJournalWriter = null;
+        }
+    }
+
+    private void closeJournal()
+    {
+        if(mJournalWriter != null)
+        {
+            try {
+                mJournalWriter.close();
+            } catch (IOException e) {/*do nothing*/}
+            mJournalWriter = null;
+        }
+    }
+
+    private void appendToJournal(String line)
+    {
+        if(mJournalWriter != null)
+        {
+            try
+            {
+                for(String key : mPendingReads)
+                    mJournalWriter.write(READ + ' ' + key + '\n');
+                mJournalWriter.write(line + '\n');
+                // flushed on every line so that a killed process loses as little as possible.
+                mJournalWriter.flush();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        mRedundantOpCount += mPendingReads.size();
+        mPendingReads.clear();
+        if(++mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOpCount >= mEntries.size())
+            rebuildJournal();
+    }
+
+    private static final class Entry
+    {
+        final String key;
+        // set while clean.
+        Blob blob;
+        boolean bClean;
+
+        Entry(String key)
+        {
+            this.key = key;
+        }
+    }
+
+    private static final class Blob
+    {
+        final String hash;
+        final long sizeBytes;
+        int refCount;
+
+        Blob(String hash, long sizeBytes)
+        {
+            this.hash = hash;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+}
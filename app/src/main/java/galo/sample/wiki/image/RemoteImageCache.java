@@ -2,35 +2,115 @@ package galo.sample.wiki.image;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import galo.sample.wiki.api.Page;
 import galo.sample.wiki.api.Thumbnail;
+import galo.sample.wiki.concurrent.ExecutorRegistry;
+import galo.sample.wiki.net.AdaptiveConcurrencyLimiter;
+import galo.sample.wiki.net.HostConcurrencyLimits;
+import galo.sample.wiki.net.ResilientRequestExecutor;
+import galo.sample.wiki.net.RetryPolicy;
+import galo.sample.wiki.util.HashUtil;
+import galo.sample.wiki.util.ResourceProfile;
 
 /**
  * An engine that loads images from a URL into the local cache and returns the file associated with
- * that image url.
+ * that image url.  The cache is bounded in size, evicting the least recently used images first, see
+ * {@link ImageDiskCache}.  Downloads that fail transiently are retried and slow ones are hedged, see
+ * {@link ResilientRequestExecutor}.
  *
  * Created by Galo on 2/27/2015.
  */
 public class RemoteImageCache
 {
     private static final String DEFAULT_PATH = "remoteimages";
+    private static final int DOWNLOAD_BUFFER_SIZE = 32 * 1024,
+                             MAX_POOLED_DOWNLOAD_BUFFERS = 8;
+    // shared by every cache, there are only so many download threads.
+    private static final ByteBufferPool sBufferPool = new ByteBufferPool(DOWNLOAD_BUFFER_SIZE, MAX_POOLED_DOWNLOAD_BUFFERS);
+    private static final int CONNECT_TIMEOUT_MS = 20 * 1000,
+                             READ_TIMEOUT_MS = 20 * 1000;
+    // how late an aborted attempt waiting for the host's limit lets go of its thread at most.
+    private static final long ABORT_CHECK_INTERVAL_MS = 50;
+    // shared as well, so that hedging is based on the latencies of every thumbnail download.
+    private static final ResilientRequestExecutor sRequestExecutor = new ResilientRequestExecutor();
+    // for a device of a 64 megabyte memory class, see ResourceProfile.getDiskCacheBytes().
+    public static final long DEFAULT_MAX_SIZE_BYTES = 10 * 1024 * 1024;
     private Context mContext;
     private File mCacheDir;
+    private final ImageDiskCache mDiskCache;
+    private final ConcurrentHashMap<String, Lookup> mInFlight = new ConcurrentHashMap<String, Lookup>();
+    private final AtomicLong mDownloads = new AtomicLong(),
+                             mBytesDownloaded = new AtomicLong(),
+                             mCacheHits = new AtomicLong(),
+                             mCoalescedRequests = new AtomicLong(),
+                             mBytesSaved = new AtomicLong(),
+                             mIndexHits = new AtomicLong(),
+                             mDownloadMillis = new AtomicLong();
 
 
+    /**
+     * Creates a cache whose maximum size is scaled to the device, see
+     * {@link ResourceProfile#getDiskCacheBytes(long)}.
+     *
+     * @param context
+     * Any context, used to locate the cache directory and profile the device.
+     */
     public RemoteImageCache(Context context)
+    {
+        this(context, -1);
+    }
+
+    /**
+     *
+     * @param context
+     * Any context, used to locate the cache directory.
+     * @param maxSizeBytes
+     * The maximum number of bytes the cached images may take on disk, or -1 to scale it to the device.
+     * Ignored if another cache of the process already uses the directory.
+     */
+    public RemoteImageCache(Context context, long maxSizeBytes)
     {
         mContext = context;
         mCacheDir = new File(mContext.getCacheDir(), DEFAULT_PATH);
-        if(!mCacheDir.exists())
-            mCacheDir.mkdirs();
+        final boolean bScaledToDevice = maxSizeBytes < 0;
+        // shared with every other cache of the directory, such as that of a recreated activity.
+        mDiskCache = ImageDiskCache.forDirectory(mCacheDir, bScaledToDevice ? DEFAULT_MAX_SIZE_BYTES : maxSizeBytes);
+        // load the index off the Main Looper thread, so that hits can then be found without disk access.
+        ExecutorRegistry.getExecutor(context, ExecutorRegistry.Role.DISK_IO).execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mDiskCache.loadIndex();
+                // the storage is only probed off the Main Looper thread.
+                if(bScaledToDevice)
+                    mDiskCache.setMaxSizeBytes(ResourceProfile.getProbedInstance(mContext)
+                            .getDiskCacheBytes(DEFAULT_MAX_SIZE_BYTES));
+            }
+        });
     }
 
     /**
@@ -38,14 +118,102 @@ public class RemoteImageCache
      */
     public void clearCache()
     {
-        for(File file : mCacheDir.listFiles())
+        mDiskCache.clear();
+    }
+
+    /**
+     * @return
+     * The number of bytes the cached images currently take on disk.
+     */
+    public long getCacheSizeBytes()
+    {
+        return mDiskCache.getSizeBytes();
+    }
+
+    /**
+     * @return
+     * The number of downloaded images that were not stored again since identical bytes already were,
+     * i.e. the same image used by several pages under different urls.
+     */
+    public long getDedupCount()
+    {
+        return mDiskCache.getDedupCount();
+    }
+
+    /**
+     * @return
+     * The number of images evicted to keep the cache within its maximum size.
+     */
+    public long getEvictionCount()
+    {
+        return mDiskCache.getEvictionCount();
+    }
+
+    /**
+     * Finds the files of the pages' images already in the cache using only the in-memory index, in a
+     * single look up, without touching the disk.  This is safe to call on the Main Looper thread.
+     * Images not found might still be cached if the index has not finished loading, so they should go
+     * through {@link #getLocalCacheFileForPage(Page)} on another thread.
+     *
+     * @param pages
+     * The pages to look up.
+     * @return
+     * For each page, in the same order, the file of its image if cached, otherwise null.
+     */
+    public File[] findCachedFilesForPages(List<Page> pages)
+    {
+        String[] keys = new String[pages.size()];
+        for(int i = 0; i < keys.length; i++)
         {
-            file.delete();
+            Page page = pages.get(i);
+            Thumbnail thumbInfo;
+            // a key no entry can have, for pages without an image.
+            keys[i] = page == null || (thumbInfo = page.getThumbNail()) == null ? ""
+                    : createKey(thumbInfo.getSource());
         }
+        File[] files = mDiskCache.peek(keys);
+        mIndexHits.addAndGet(countFound(files));
+        return files;
+    }
+
+    /**
+     * Like {@link #findCachedFilesForPages(List)}, for a single page, such as one just parsed.
+     *
+     * @param page
+     * The page to look up.
+     * @return
+     * The file of its image if cached, otherwise null.
+     */
+    public File findCachedFileForPage(Page page)
+    {
+        return findCachedFilesForPages(Collections.singletonList(page))[0];
+    }
+
+    private static int countFound(File[] files)
+    {
+        int count = 0;
+        for(File file : files)
+        {
+            if(file != null)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * The key is a hash of the full source url rather than of the page, so that an image shared by
+     * several pages is looked up under one key and a page whose image changed url does not get the old
+     * image back.
+     */
+    private static String createKey(String sourceUrl)
+    {
+        return HashUtil.sha1Hex(sourceUrl);
     }
 
     /**
      * Retrieves the file associated with the page, downloading it if necessary from the internet.
+     * When several threads ask for the same thumbnail at the same time, only the first one downloads
+     * it while the others wait for that download and get the same result.
      * NOTE: You must have permissions to access the internet.
      *
      * TODO: make generic for URL, not for Page.  Extend the class for using Page.
@@ -53,66 +221,457 @@ public class RemoteImageCache
      * The Page object containing Source information about the thumbnail image to download.
      * @return
      * The local file with the image for the Page.  Null could happen if there is no image associated
-     * with the Page or if a network or file io error occurred, so a check for null should be done
-     * before doing any work on the File.
+     * with the Page, if a network or file io error occurred or if the thread was interrupted while
+     * downloading or waiting for another thread's download, so a check for null should be done before
+     * doing any work on the File.
      */
     public File getLocalCacheFileForPage(Page page)
     {
         Thumbnail thumbInfo;
-        File cachedFile = null;
-        if(page != null && (thumbInfo = page.getThumbNail()) != null)
-        {
-            // construct file name
-            Uri srcUri = Uri.parse(thumbInfo.getSource());
-            cachedFile = new File(mCacheDir
-                    , String.valueOf(page.getPageId()) + "__" + srcUri.getLastPathSegment());
-            if(!cachedFile.exists())
+        if(page == null || (thumbInfo = page.getThumbNail()) == null)
+            return null;
+
+        final Uri srcUri = Uri.parse(thumbInfo.getSource());
+        final String key = createKey(thumbInfo.getSource());
+
+        // every lookup goes through the in-flight map, so that concurrent lookups of the same image
+        // share one download.
+        Lookup lookup = new Lookup(srcUri, key);
+        Lookup inFlight = mInFlight.putIfAbsent(key, lookup);
+        if(inFlight == null)
+        {
+            try
+            {
+                lookup.task.run();
+            }
+            finally
+            {
+                mInFlight.remove(key, lookup);
+            }
+            inFlight = lookup;
+        }
+
+        try
+        {
+            File file = inFlight.task.get();
+            // only joining an actual download saved anything.
+            if(inFlight != lookup && inFlight.bDownloaded)
+            {
+                mCoalescedRequests.incrementAndGet();
+                if(file != null)
+                    mBytesSaved.addAndGet(file.length());
+            }
+            return file;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private File download(Uri srcUri, String key)
+    {
+        File tmpFile = mDiskCache.beginWrite(key);
+        // hashed as it is written, for the cache to store identical images once.
+        MessageDigest contentDigest = HashUtil.newSha1Digest();
+        boolean bExceptionOccurred = false,
+                bCancelled = false,
+                bHostSucceeded = false;
+        int statusCode = -1;
+        long bytesRead = 0;
+        // load from uri
+        FileOutputStream fos = null;
+        InputStream inStream = null;
+        HttpURLConnection connection = null;
+        // every attempt goes through the host's limiter on its own, see ThumbnailCall.
+        ThumbnailCall call = null;
+        long start = SystemClock.elapsedRealtime();
+        ByteBuffer buffer = sBufferPool.acquire();
+        try
+        {
+            // retried and hedged up to the response headers, the content is then read from the winner.
+            call = new ThumbnailCall(new URL(srcUri.toString()), HostConcurrencyLimits.forHost(srcUri.getHost()));
+            connection = sRequestExecutor.execute(call);
+            statusCode = connection.getResponseCode();
+            // the host's limiter goes by the status alone, as for api requests: a missing or forbidden
+            // image is not cached, but it is no failure of the host.
+            bHostSucceeded = statusCode < 500 && !RetryPolicy.isRetryableStatus(statusCode);
+            if(statusCode != HttpURLConnection.HTTP_OK)
+                throw new IOException("Received error code " + statusCode + " from response.");
+            inStream = connection.getInputStream();
+            fos = new FileOutputStream(tmpFile);
+            FileChannel outChannel = fos.getChannel();
+            // the stream is read straight into the pooled buffer's array, a channel around the
+            // stream would copy through an array of its own.
+            byte[] array = buffer.array();
+            boolean bEndOfStream = false;
+            while(!bEndOfStream)
             {
-                boolean bExceptionOccurred = false;
-                // load from uri
-                FileOutputStream fos = null;
-                InputStream inStream = null;
-                try
+                // fill the whole buffer before writing, so that an image takes few, large writes.
+                buffer.clear();
+                // reads do not notice interrupts, an unwanted download is stopped between them.
+                if(Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("The download was cancelled.");
+                while(buffer.hasRemaining())
                 {
-                    URL imgUrl = new URL(srcUri.toString());
-                    inStream = imgUrl.openStream();
-                    fos = new FileOutputStream(cachedFile);
-                    byte[] buffer = new byte[4096];
-                    int nBytes;
-                    while((nBytes = inStream.read(buffer)) > 0)
+                    int nBytes = inStream.read(array, buffer.position(), buffer.remaining());
+                    if(nBytes < 0)
                     {
-                        fos.write(buffer, 0, nBytes);
+                        bEndOfStream = true;
+                        break;
                     }
+                    buffer.position(buffer.position() + nBytes);
                 }
-                catch (Exception e)
+                buffer.flip();
+                contentDigest.update(array, 0, buffer.limit());
+                bytesRead += buffer.limit();
+                while(buffer.hasRemaining())
+                    outChannel.write(buffer);
+            }
+        }
+        catch (SocketTimeoutException e)
+        {
+            // the host is too slow, which is what its limiter is to find out about.
+            e.printStackTrace();
+            bExceptionOccurred = true;
+            bHostSucceeded = false;
+        }
+        catch (InterruptedIOException e)
+        {
+            // only cancelled if interrupted, which is not a failure of the host.
+            bExceptionOccurred = true;
+            bCancelled = Thread.currentThread().isInterrupted();
+            if(!bCancelled)
+                e.printStackTrace();
+            bHostSucceeded = false;
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            bExceptionOccurred = true;
+            // failing to read the content is one of the host, an error status was already accounted for.
+            if(statusCode == HttpURLConnection.HTTP_OK)
+                bHostSucceeded = false;
+        }
+        finally
+        {
+            if(fos != null)
+            {
+                try {
+                    fos.close();
+                } catch (IOException e) {/*do nothing*/}
+            }
+            if(inStream != null)
+            {
+                try {
+                    inStream.close();
+                } catch (IOException e) {/*do nothing*/}
+            }
+            // an error response was not read, its connection cannot be reused.
+            else if(connection != null)
+                connection.disconnect();
+            sBufferPool.release(buffer);
+            // the winning attempt holds on to its permit until its content has been read.
+            if(connection != null)
+                call.releasePermit(connection, bytesRead, bHostSucceeded, !bCancelled);
+        }
+
+        mDownloads.incrementAndGet();
+        mBytesDownloaded.addAndGet(bytesRead);
+        mDownloadMillis.addAndGet(SystemClock.elapsedRealtime() - start);
+        if(bExceptionOccurred)
+        {
+            mDiskCache.abort(key, tmpFile);
+            return null;
+        }
+        // only now does the image appear under its name, complete.
+        return mDiskCache.commit(key, tmpFile, HashUtil.toHexString(contentDigest.digest()));
+    }
+
+    /**
+     * @return
+     * The number of downloads started since this cache was created, failed ones included.
+     */
+    public long getDownloadCount()
+    {
+        return mDownloads.get();
+    }
+
+    /**
+     * @return
+     * The number of bytes downloaded since this cache was created.
+     */
+    public long getBytesDownloaded()
+    {
+        return mBytesDownloaded.get();
+    }
+
+    /**
+     * @return
+     * The average download throughput since this cache was created, in bytes per second, or 0 if
+     * nothing has been downloaded yet.
+     */
+    public long getDownloadBytesPerSecond()
+    {
+        long millis = mDownloadMillis.get();
+        return millis <= 0 ? 0 : mBytesDownloaded.get() * 1000 / millis;
+    }
+
+    /**
+     * @return
+     * The number of download buffers ever allocated, over all caches.  Compared to
+     * {@link #getDownloadCount()} it shows how well the buffers are reused.
+     */
+    public static long getDownloadBufferAllocationCount()
+    {
+        return sBufferPool.getAllocatedCount();
+    }
+
+    /**
+     * @return
+     * The executor retrying and hedging thumbnail downloads, over all caches, with its retry and hedge
+     * counts.
+     */
+    public static ResilientRequestExecutor getRequestExecutor()
+    {
+        return sRequestExecutor;
+    }
+
+    /**
+     * @return
+     * The number of images found through {@link #findCachedFilesForPages(List)}, without touching the
+     * disk.
+     */
+    public long getIndexHitCount()
+    {
+        return mIndexHits.get();
+    }
+
+    /**
+     * @return
+     * The number of lookups answered by a file already in the cache.
+     */
+    public long getCacheHitCount()
+    {
+        return mCacheHits.get();
+    }
+
+    /**
+     * @return
+     * The number of lookups that joined a download of the same thumbnail already in progress instead
+     * of starting their own.
+     */
+    public long getCoalescedRequestCount()
+    {
+        return mCoalescedRequests.get();
+    }
+
+    /**
+     * @return
+     * The number of bytes that joined lookups would otherwise have downloaded again.
+     */
+    public long getBytesSaved()
+    {
+        return mBytesSaved.get();
+    }
+
+    /**
+     * Looks up one thumbnail, downloading it unless already cached.  Other threads asking for the same
+     * thumbnail in the meantime wait on its task instead of starting their own.
+     */
+    private class Lookup implements Callable<File>
+    {
+        final Uri srcUri;
+        final String key;
+        final FutureTask<File> task = new FutureTask<File>(this);
+        volatile boolean bDownloaded;
+
+        Lookup(Uri srcUri, String key)
+        {
+            this.srcUri = srcUri;
+            this.key = key;
+        }
+
+        @Override
+        public File call()
+        {
+            File cachedFile = mDiskCache.get(key);
+            if(cachedFile != null)
+            {
+                mCacheHits.incrementAndGet();
+                return cachedFile;
+            }
+            bDownloaded = true;
+            return download(srcUri, key);
+        }
+    }
+
+    /**
+     * Requests a thumbnail, on a new connection for every attempt.  Server errors and throttling are
+     * retried, after the wait asked for in {@code Retry-After}, if any.
+     *
+     * Each attempt, hedges included, waits for the host's limiter on its own and only holds its permit
+     * while its request is out, so that retry backoffs neither hold a permit nor count towards the
+     * latency the limiter measures.  The permit of a discarded attempt is released with it, that of the
+     * winner by {@link #releasePermit(HttpURLConnection, long, boolean, boolean)} once its content has
+     * been read.
+     */
+    private static class ThumbnailCall extends ResilientRequestExecutor.Call<HttpURLConnection>
+    {
+        private final URL mUrl;
+        private final AdaptiveConcurrencyLimiter mLimiter;
+        // the time each returned connection was let through by the limiter, until released.
+        private final Map<HttpURLConnection, Long> mPermits = new HashMap<HttpURLConnection, Long>();
+
+        ThumbnailCall(URL url, AdaptiveConcurrencyLimiter limiter)
+        {
+            mUrl = url;
+            mLimiter = limiter;
+        }
+
+        /**
+         * Releases the permit of the connection's attempt, if not already released.
+         *
+         * @param bytes
+         * The number of bytes of content read.
+         * @param bSuccess
+         * False if the request failed because of the network or the host.
+         * @param bMeasured
+         * False if the request was cancelled, which says nothing about the host.
+         */
+        void releasePermit(HttpURLConnection connection, long bytes, boolean bSuccess, boolean bMeasured)
+        {
+            Long acquiredAt;
+            synchronized (mPermits)
+            {
+                acquiredAt = mPermits.remove(connection);
+            }
+            if(acquiredAt == null)
+                return;
+            if(bMeasured)
+                mLimiter.release(acquiredAt, bytes, bSuccess);
+            else
+                mLimiter.releaseUnmeasured();
+        }
+
+        @Override
+        protected ResilientRequestExecutor.Attempt<HttpURLConnection> newAttempt()
+        {
+            return new ResilientRequestExecutor.Attempt<HttpURLConnection>()
+            {
+                private HttpURLConnection mConnection;
+                private boolean bAborted;
+
+                @Override
+                public HttpURLConnection execute() throws IOException
                 {
-                    e.printStackTrace();
-                    bExceptionOccurred = true;
+                    long acquiredAt = acquirePermit();
+                    HttpURLConnection connection;
+                    try
+                    {
+                        connection = (HttpURLConnection) mUrl.openConnection();
+                        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                        connection.setReadTimeout(READ_TIMEOUT_MS);
+                        synchronized (this)
+                        {
+                            if(bAborted)
+                                throw new InterruptedIOException("The request was aborted.");
+                            mConnection = connection;
+                        }
+                        // blocks until the response headers are in.
+                        connection.getResponseCode();
+                    }
+                    catch (IOException e)
+                    {
+                        if(isAborted())
+                            mLimiter.releaseUnmeasured();
+                        else
+                            mLimiter.release(acquiredAt, 0, false);
+                        throw e;
+                    }
+                    synchronized (mPermits)
+                    {
+                        mPermits.put(connection, acquiredAt);
+                    }
+                    return connection;
                 }
-                finally
+
+                /**
+                 * Waits for the host's limiter, checking every so often whether the attempt has been
+                 * aborted, which does not wake the wait.
+                 */
+                private long acquirePermit() throws IOException
                 {
-                    if(fos != null)
+                    try
                     {
-                        try {
-                            fos.close();
-                        } catch (IOException e) {/*do nothing*/}
+                        long acquiredAt;
+                        do
+                        {
+                            if(isAborted())
+                                throw new InterruptedIOException("Aborted waiting for the host's concurrency limit.");
+                            acquiredAt = mLimiter.tryAcquire(ABORT_CHECK_INTERVAL_MS);
+                        }
+                        while(acquiredAt < 0);
+                        return acquiredAt;
                     }
-                    if(inStream != null)
+                    catch (InterruptedException e)
                     {
-                        try {
-                            inStream.close();
-                        } catch (IOException e) {/*do nothing*/}
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for the host's concurrency limit.");
                     }
                 }
 
-                if(bExceptionOccurred)
+                private synchronized boolean isAborted()
                 {
-                    cachedFile.delete();
-                    cachedFile = null;
+                    return bAborted;
                 }
+
+                @Override
+                public void abort()
+                {
+                    HttpURLConnection connection;
+                    synchronized (this)
+                    {
+                        bAborted = true;
+                        connection = mConnection;
+                    }
+                    if(connection != null)
+                        connection.disconnect();
+                }
+            };
+        }
+
+        @Override
+        protected boolean isRetryable(HttpURLConnection connection)
+        {
+            try
+            {
+                return RetryPolicy.isRetryableStatus(connection.getResponseCode());
+            }
+            catch (IOException e)
+            {
+                return true;
             }
         }
 
-        return cachedFile;
+        @Override
+        protected long getRetryAfterMillis(HttpURLConnection connection)
+        {
+            return RetryPolicy.parseRetryAfterMillis(connection.getHeaderField(RetryPolicy.RETRY_AFTER_HEADER));
+        }
+
+        @Override
+        protected void discard(HttpURLConnection connection)
+        {
+            // a response retried for its status counts as a failure of the host.
+            releasePermit(connection, 0, !isRetryable(connection), true);
+            connection.disconnect();
+        }
     }
 }
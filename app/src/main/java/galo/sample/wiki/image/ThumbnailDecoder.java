@@ -0,0 +1,172 @@
+package galo.sample.wiki.image;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes thumbnail files for the size they are displayed at, reusing the memory of bitmaps from a
+ * {@link BitmapPool} where the platform allows.  The bounds of the image are read first, so that the
+ * image can be downsampled, by the largest power of two that keeps it at least as large as the target
+ * size, and so that a bitmap of the right size can be taken from the pool.  Opaque images can
+ * optionally be decoded in RGB_565, which takes half the memory of ARGB_8888.
+ *
+ * This is thread-safe.
+ */
+public class ThumbnailDecoder
+{
+    private static final String JPEG_MIME_TYPE = "image/jpeg";
+
+    private final BitmapPool mPool;
+    private final boolean bPreferRgb565;
+    private final AtomicLong mDecodeCount = new AtomicLong(),
+                             mDecodedBytes = new AtomicLong(),
+                             mFullSizeBytes = new AtomicLong();
+
+    /**
+     *
+     * @param pool
+     * The pool reused bitmaps are taken from.
+     * @param bPreferRgb565
+     * True to decode images without transparency, i.e. JPEGs, in RGB_565 rather than ARGB_8888.
+     */
+    public ThumbnailDecoder(BitmapPool pool, boolean bPreferRgb565)
+    {
+        if(pool == null)
+            throw new NullPointerException("The bitmap pool cannot be null.");
+        mPool = pool;
+        this.bPreferRgb565 = bPreferRgb565;
+    }
+
+    /**
+     * @param file
+     * The image file.
+     * @param targetWidth
+     * The width the image is displayed at, 0 or less to decode it at its full size.
+     * @param targetHeight
+     * The height the image is displayed at, 0 or less to decode it at its full size.
+     * @return
+     * The decoded bitmap, mutable where bitmaps can be reused, or null if the file is missing or
+     * cannot be decoded.
+     */
+    public Bitmap decode(File file, int targetWidth, int targetHeight)
+    {
+        String path = file.getPath();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        int fullWidth = options.outWidth,
+            fullHeight = options.outHeight;
+        if(fullWidth <= 0 || fullHeight <= 0)
+            return null;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = computeSampleSize(fullWidth, fullHeight, targetWidth, targetHeight);
+        options.inPreferredConfig = bPreferRgb565 && JPEG_MIME_TYPE.equals(options.outMimeType)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+
+        Bitmap bitmap = decode(path, options);
+        if(bitmap != null)
+        {
+            mDecodeCount.incrementAndGet();
+            mDecodedBytes.addAndGet(BitmapPool.byteCountOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()));
+            mFullSizeBytes.addAndGet(BitmapPool.byteCountOf(fullWidth, fullHeight, Bitmap.Config.ARGB_8888));
+        }
+        return bitmap;
+    }
+
+    private Bitmap decode(String path, BitmapFactory.Options options)
+    {
+        // before KitKat a bitmap can only be reused by a decode that is not downsampled.
+        boolean bReusable = BitmapPool.isReuseSupported()
+                && (options.inSampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+        if(!bReusable)
+            return BitmapFactory.decodeFile(path, options);
+
+        int sampledWidth = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize,
+            sampledHeight = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        Bitmap reusable = mPool.get(sampledWidth, sampledHeight, options.inPreferredConfig);
+        setReuseOptions(options, reusable);
+        try
+        {
+            Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+            // a failed decode leaves the bitmap unused.
+            if(bitmap == null && reusable != null)
+                mPool.put(reusable);
+            return bitmap;
+        }
+        catch (IllegalArgumentException e)
+        {
+            if(reusable == null)
+                throw e;
+            // the decoder refused the bitmap, i.e. a format it cannot decode into one.
+            mPool.put(reusable);
+            setReuseOptions(options, null);
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void setReuseOptions(BitmapFactory.Options options, Bitmap reusable)
+    {
+        // only mutable bitmaps can be reused later on.
+        options.inMutable = true;
+        options.inBitmap = reusable;
+    }
+
+    /**
+     * @return
+     * The largest power of two the image can be downsampled by while staying at least as large as the
+     * target in both dimensions, 1 if there is no target.
+     */
+    static int computeSampleSize(int width, int height, int targetWidth, int targetHeight)
+    {
+        int sampleSize = 1;
+        if(targetWidth <= 0 || targetHeight <= 0)
+            return sampleSize;
+        while(width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /**
+     * @return
+     * The number of images decoded.
+     */
+    public long getDecodeCount()
+    {
+        return mDecodeCount.get();
+    }
+
+    /**
+     * @return
+     * The bytes of pixels of all the decoded images.
+     */
+    public long getDecodedBytes()
+    {
+        return mDecodedBytes.get();
+    }
+
+    /**
+     * @return
+     * The bytes of pixels the decoded images would have taken decoded at their full size in ARGB_8888,
+     * to compare with {@link #getDecodedBytes()}.
+     */
+    public long getFullSizeBytes()
+    {
+        return mFullSizeBytes.get();
+    }
+
+    /**
+     * @return
+     * The average bytes of pixels of a decoded image, 0 if none has been decoded yet.
+     */
+    public long getAverageDecodedBytes()
+    {
+        long count = mDecodeCount.get();
+        return count == 0 ? 0 : mDecodedBytes.get() / count;
+    }
+}
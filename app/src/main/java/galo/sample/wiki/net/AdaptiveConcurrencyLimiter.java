@@ -0,0 +1,256 @@
+package galo.sample.wiki.net;
+
+import android.os.SystemClock;
+
+/**
+ * Limits the number of requests in flight to one host, adjusting the limit to the network using
+ * additive increase, multiplicative decrease.  Every request that completes about as fast as the
+ * fastest recent ones raises the limit by a fraction, so that it grows by about one per round of
+ * requests, while a failed request, or one taking much longer than the fastest recent ones, which is
+ * what queueing on a congested link looks like, cuts the limit down.
+ *
+ * Requests that go over the limit wait in {@link #acquire()} until another request is released.
+ *
+ * This is thread-safe.
+ */
+public class AdaptiveConcurrencyLimiter
+{
+    public static final int DEFAULT_INITIAL_LIMIT = 4,
+                            DEFAULT_MIN_LIMIT = 1,
+                            DEFAULT_MAX_LIMIT = 12;
+
+    // latency beyond this multiple of the baseline is taken as congestion.
+    private static final float CONGESTION_LATENCY_RATIO = 2.0f;
+    private static final float DECREASE_FACTOR = 0.75f;
+    // the baseline slowly forgets its minimum, so that it follows a network that got slower for good.
+    private static final float BASELINE_DECAY = 1.02f;
+    // after a decrease, completions of requests started before it do not decrease again.
+    private static final long DECREASE_HOLD_OFF_MS = 250;
+
+    private final String mHost;
+    private final int mMinLimit;
+    private int mMaxLimit;
+    private double mLimit;
+    private int mInFlight,
+                mWaiting;
+    private double mBaselineLatencyMs = -1,
+                   mAverageLatencyMs = -1,
+                   mAverageBytesPerMs = -1;
+    private long mLastDecreaseTime = -1,
+                 mDecreaseCount,
+                 mCompletedCount;
+
+    public AdaptiveConcurrencyLimiter(String host)
+    {
+        this(host, DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    /**
+     *
+     * @param host
+     * The host the limiter is for, only used to describe it.
+     * @param initialLimit
+     * The limit before anything has been measured.
+     * @param minLimit
+     * The lowest the limit can be cut down to.
+     * @param maxLimit
+     * The highest the limit can grow to.
+     */
+    public AdaptiveConcurrencyLimiter(String host, int initialLimit, int minLimit, int maxLimit)
+    {
+        mHost = host;
+        mMinLimit = Math.max(1, minLimit);
+        mMaxLimit = Math.max(mMinLimit, maxLimit);
+        mLimit = Math.max(mMinLimit, Math.min(mMaxLimit, initialLimit));
+    }
+
+    /**
+     * Waits until a request may go out, then counts it as in flight.  Must be followed by
+     * {@link #release(long, long, boolean)} once the request completes.
+     *
+     * @return
+     * The time the request was let through, to be passed to release.
+     * @throws InterruptedException
+     * If interrupted while waiting, in which case the request is not counted.
+     */
+    public synchronized long acquire() throws InterruptedException
+    {
+        mWaiting++;
+        try
+        {
+            while(mInFlight >= (int) mLimit)
+                wait();
+        }
+        finally
+        {
+            mWaiting--;
+        }
+        mInFlight++;
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Like {@link #acquire()}, but gives up after a while, so that the caller can check whether the
+     * request is still wanted before waiting again.
+     *
+     * @param timeoutMillis
+     * The longest to wait.
+     * @return
+     * The time the request was let through, to be passed to release, or -1 if the time ran out, in
+     * which case the request is not counted.
+     * @throws InterruptedException
+     * If interrupted while waiting, in which case the request is not counted.
+     */
+    public synchronized long tryAcquire(long timeoutMillis) throws InterruptedException
+    {
+        long deadline = SystemClock.elapsedRealtime() + Math.max(0, timeoutMillis);
+        mWaiting++;
+        try
+        {
+            while(mInFlight >= (int) mLimit)
+            {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if(remaining <= 0)
+                    return -1;
+                wait(remaining);
+            }
+        }
+        finally
+        {
+            mWaiting--;
+        }
+        mInFlight++;
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Counts a request as completed and adjusts the limit from how it went.
+     *
+     * @param acquiredAt
+     * The time returned by {@link #acquire()}.
+     * @param bytes
+     * The number of bytes received, used to tell a large response apart from a slow one.
+     * @param bSuccess
+     * False if the request failed because of the network or the host.
+     */
+    public synchronized void release(long acquiredAt, long bytes, boolean bSuccess)
+    {
+        mInFlight = Math.max(0, mInFlight - 1);
+        long now = SystemClock.elapsedRealtime();
+        long latencyMs = Math.max(1, now - acquiredAt);
+
+        // the part of the latency spent receiving the bytes at the usual rate says nothing about
+        // congestion.
+        double transferMs = mAverageBytesPerMs > 0 ? bytes / mAverageBytesPerMs : 0;
+        double waitMs = Math.max(1, latencyMs - transferMs);
+
+        boolean bCongested = !bSuccess
+                || (mBaselineLatencyMs > 0 && waitMs > mBaselineLatencyMs * CONGESTION_LATENCY_RATIO);
+        if(bCongested)
+        {
+            if(mLastDecreaseTime < 0 || now - mLastDecreaseTime >= DECREASE_HOLD_OFF_MS)
+            {
+                mLimit = Math.max(mMinLimit, mLimit * DECREASE_FACTOR);
+                mLastDecreaseTime = now;
+                mDecreaseCount++;
+            }
+        }
+        else
+            mLimit = Math.min(mMaxLimit, mLimit + 1.0 / mLimit);
+
+        if(bSuccess)
+        {
+            mCompletedCount++;
+            mBaselineLatencyMs = mBaselineLatencyMs < 0 ? waitMs : Math.min(mBaselineLatencyMs * BASELINE_DECAY, waitMs);
+            mAverageLatencyMs = mAverageLatencyMs < 0 ? latencyMs : mAverageLatencyMs * 0.8 + latencyMs * 0.2;
+            if(bytes > 0)
+            {
+                double bytesPerMs = (double) bytes / latencyMs;
+                mAverageBytesPerMs = mAverageBytesPerMs < 0 ? bytesPerMs : mAverageBytesPerMs * 0.8 + bytesPerMs * 0.2;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Counts a request as completed without learning anything from it, i.e. because it was aborted
+     * by its caller.
+     */
+    public synchronized void releaseUnmeasured()
+    {
+        mInFlight = Math.max(0, mInFlight - 1);
+        notifyAll();
+    }
+
+    /**
+     * Caps the limit, i.e. to the number of connections the host may have, beyond which requests
+     * would only queue for a connection and look congested.
+     *
+     * @param maxLimit
+     * The highest the limit can grow to.
+     */
+    public synchronized void setMaxLimit(int maxLimit)
+    {
+        mMaxLimit = Math.max(mMinLimit, maxLimit);
+        mLimit = Math.min(mLimit, mMaxLimit);
+    }
+
+    public String getHost()
+    {
+        return mHost;
+    }
+
+    /**
+     * @return
+     * The number of requests currently allowed in flight at the same time.
+     */
+    public synchronized int getLimit()
+    {
+        return (int) mLimit;
+    }
+
+    public synchronized int getInFlight()
+    {
+        return mInFlight;
+    }
+
+    /**
+     * @return
+     * The number of requests waiting for the limit to let them through.
+     */
+    public synchronized int getQueueDepth()
+    {
+        return mWaiting;
+    }
+
+    /**
+     * @return
+     * A moving average of the request latency, or -1 if not yet known.
+     */
+    public synchronized long getAverageLatencyMillis()
+    {
+        return (long) mAverageLatencyMs;
+    }
+
+    /**
+     * @return
+     * A moving average of the throughput of single requests, in bytes per second, or -1 if not yet known.
+     */
+    public synchronized long getAverageBytesPerSecond()
+    {
+        return mAverageBytesPerMs < 0 ? -1 : (long) (mAverageBytesPerMs * 1000);
+    }
+
+    public synchronized long getDecreaseCount()
+    {
+        return mDecreaseCount;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return mHost + " limit=" + (int) mLimit + " inFlight=" + mInFlight + " queued=" + mWaiting
+                + " avgLatencyMs=" + (long) mAverageLatencyMs + " completed=" + mCompletedCount
+                + " decreases=" + mDecreaseCount;
+    }
+}
@@ -0,0 +1,74 @@
+package galo.sample.wiki.net;
+
+/**
+ * An immutable snapshot of the state of the {@link HttpTransport} connection pool, useful for
+ * checking that connections are actually being kept alive and reused between requests.
+ */
+public final class ConnectionPoolStats
+{
+    private final int mIdleConnections,
+                      mActiveConnections;
+    private final long mTotalLeases,
+                       mReusedLeases;
+
+    ConnectionPoolStats(int idleConnections, int activeConnections, long totalLeases, long reusedLeases)
+    {
+        mIdleConnections = idleConnections;
+        mActiveConnections = activeConnections;
+        mTotalLeases = totalLeases;
+        mReusedLeases = reusedLeases;
+    }
+
+    /**
+     * @return
+     * The number of open connections sitting in the pool waiting to be reused.
+     */
+    public int getIdleConnections()
+    {
+        return mIdleConnections;
+    }
+
+    /**
+     * @return
+     * The number of connections currently leased to a running request.
+     */
+    public int getActiveConnections()
+    {
+        return mActiveConnections;
+    }
+
+    /**
+     * @return
+     * The number of times a connection has been handed out to a request.
+     */
+    public long getTotalLeases()
+    {
+        return mTotalLeases;
+    }
+
+    /**
+     * @return
+     * The number of times the handed out connection was an already open, kept alive, connection.
+     */
+    public long getReusedLeases()
+    {
+        return mReusedLeases;
+    }
+
+    /**
+     * @return
+     * The fraction, from 0 to 1, of requests that did not have to open a new connection.
+     */
+    public float getReuseRatio()
+    {
+        return mTotalLeases == 0 ? 0f : (float) mReusedLeases / mTotalLeases;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "idle=" + mIdleConnections + " active=" + mActiveConnections
+                + " leases=" + mTotalLeases + " reused=" + mReusedLeases
+                + " reuseRatio=" + getReuseRatio();
+    }
+}
@@ -0,0 +1,45 @@
+package galo.sample.wiki.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The process-wide {@link AdaptiveConcurrencyLimiter}s, one per host, shared by everything making
+ * requests so that they all count against the same limit.
+ */
+public class HostConcurrencyLimits
+{
+    private static final ConcurrentHashMap<String, AdaptiveConcurrencyLimiter> sLimiters
+            = new ConcurrentHashMap<String, AdaptiveConcurrencyLimiter>();
+
+    /**
+     * @param host
+     * The host name, i.e. "upload.wikimedia.org".  Null is treated as an unknown host.
+     * @return
+     * The limiter of the host, created on first use.
+     */
+    public static AdaptiveConcurrencyLimiter forHost(String host)
+    {
+        String key = host == null ? "" : host.toLowerCase(Locale.ROOT);
+        AdaptiveConcurrencyLimiter limiter = sLimiters.get(key);
+        if(limiter == null)
+        {
+            AdaptiveConcurrencyLimiter newLimiter = new AdaptiveConcurrencyLimiter(key);
+            limiter = sLimiters.putIfAbsent(key, newLimiter);
+            if(limiter == null)
+                limiter = newLimiter;
+        }
+        return limiter;
+    }
+
+    /**
+     * @return
+     * The limiters of every host requested so far, mostly to look at their metrics.
+     */
+    public static List<AdaptiveConcurrencyLimiter> getAll()
+    {
+        return new ArrayList<AdaptiveConcurrencyLimiter>(sLimiters.values());
+    }
+}
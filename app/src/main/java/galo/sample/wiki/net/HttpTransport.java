@@ -0,0 +1,318 @@
+package galo.sample.wiki.net;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.os.SystemClock;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-lived http client meant to be shared across the whole process.  Unlike creating a new
+ * {@link android.net.http.AndroidHttpClient} for each request, connections are kept alive and pooled
+ * per host and TLS sessions are cached, so consecutive requests to the same host skip both the TCP
+ * and the TLS handshakes.
+ *
+ * Callers must always consume or close the content of the returned response entity, since that is
+ * what hands the connection back to the pool.
+ */
+public class HttpTransport
+{
+    private static final String USER_AGENT = "Android";
+    private static final int CONNECTION_TIMEOUT_MS = 20 * 1000,
+                             SOCKET_TIMEOUT_MS = 20 * 1000,
+                             SOCKET_BUFFER_SIZE = 8192;
+    private static final long POOL_WAIT_TIMEOUT_MS = 10 * 1000;
+    // how late an aborted request waiting for the host's limit lets go of its thread at most.
+    private static final long ABORT_CHECK_INTERVAL_MS = 50;
+
+    /**
+     * How long an idle connection is kept in the pool when the server does not send a Keep-Alive
+     * header of its own.
+     */
+    private static final long DEFAULT_KEEP_ALIVE_MS = 30 * 1000;
+
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 8,
+                            DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    private final DefaultHttpClient mHttpClient;
+    private final PoolTrackingConnManager mConnManager;
+    private final ConnPerRouteBean mConnPerRoute;
+    // exponentially weighted moving average of the time until response headers arrive, -1 until known.
+    private volatile long mAverageResponseMillis = -1;
+
+    /**
+     * Creates the transport using the default pool limits.
+     *
+     * @param context
+     * Any context, only used to locate the TLS session cache.
+     */
+    public HttpTransport(Context context)
+    {
+        this(context, DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     *
+     * @param context
+     * Any context, only used to locate the TLS session cache.
+     * @param maxTotalConnections
+     * The maximum number of connections, over all hosts, that can be open at the same time.
+     * @param maxConnectionsPerHost
+     * The default maximum number of connections to a single host.  It can be overridden for specific
+     * hosts through {@link #setMaxConnectionsForHost(String, int)}.
+     */
+    public HttpTransport(Context context, int maxTotalConnections, int maxConnectionsPerHost)
+    {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpProtocolParams.setUserAgent(params, USER_AGENT);
+        HttpProtocolParams.setUseExpectContinue(params, false);
+        HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT_MS);
+        HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MS);
+        HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        // a pooled connection might have been closed by the server while idle.
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+        mConnPerRoute = new ConnPerRouteBean(Math.max(1, maxConnectionsPerHost));
+        ConnManagerParams.setMaxTotalConnections(params, Math.max(1, maxTotalConnections));
+        ConnManagerParams.setMaxConnectionsPerRoute(params, mConnPerRoute);
+        ConnManagerParams.setTimeout(params, POOL_WAIT_TIMEOUT_MS);
+
+        // the session cache lets a new connection resume a previous TLS session instead of
+        // performing a full handshake.
+        SSLSessionCache sessionCache = new SSLSessionCache(context.getApplicationContext());
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https",
+                SSLCertificateSocketFactory.getHttpSocketFactory(SOCKET_TIMEOUT_MS, sessionCache), 443));
+
+        mConnManager = new PoolTrackingConnManager(params, schemeRegistry);
+        mHttpClient = new DefaultHttpClient(mConnManager, params);
+        mHttpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy()
+        {
+            private final DefaultConnectionKeepAliveStrategy mServerStrategy = new DefaultConnectionKeepAliveStrategy();
+
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+            {
+                long duration = mServerStrategy.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : DEFAULT_KEEP_ALIVE_MS;
+            }
+        });
+    }
+
+    /**
+     * Overrides the default number of simultaneous connections allowed to a specific host.
+     *
+     * @param hostName
+     * The host name, i.e. "en.wikipedia.org".
+     * @param maxConnections
+     * The maximum number of connections that can be open to the host at the same time.
+     */
+    public void setMaxConnectionsForHost(String hostName, int maxConnections)
+    {
+        int max = Math.max(1, maxConnections);
+        mConnPerRoute.setMaxForRoute(new HttpRoute(new HttpHost(hostName, 443, "https"), null, true), max);
+        mConnPerRoute.setMaxForRoute(new HttpRoute(new HttpHost(hostName, 80, "http"), null, false), max);
+        // more requests than connections would only wait for one and look congested.
+        HostConcurrencyLimits.forHost(hostName).setMaxLimit(max);
+    }
+
+    /**
+     * Executes the request using a pooled connection, once the host's
+     * {@link AdaptiveConcurrencyLimiter} lets it through.
+     *
+     * @param request
+     * The request to perform.
+     * @return
+     * The response.  Its entity must be consumed or its content closed once done.
+     * @throws IOException
+     * On a network failure or when the request is aborted.
+     */
+    public HttpResponse execute(HttpUriRequest request) throws IOException
+    {
+        AdaptiveConcurrencyLimiter limiter = HostConcurrencyLimits.forHost(request.getURI().getHost());
+        long acquiredAt;
+        try
+        {
+            // aborting the request does not wake the wait, so it is checked for every so often.
+            do
+            {
+                if(request.isAborted())
+                    throw new InterruptedIOException("Aborted waiting for the host's concurrency limit.");
+                acquiredAt = limiter.tryAcquire(ABORT_CHECK_INTERVAL_MS);
+            }
+            while(acquiredAt < 0);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the host's concurrency limit.");
+        }
+        if(request.isAborted())
+        {
+            // aborted right as it was let through, it must not go out.
+            limiter.releaseUnmeasured();
+            throw new InterruptedIOException("Aborted waiting for the host's concurrency limit.");
+        }
+
+        boolean bSuccess = false;
+        try
+        {
+            long start = SystemClock.elapsedRealtime();
+            HttpResponse response = mHttpClient.execute(request);
+            recordResponseTime(SystemClock.elapsedRealtime() - start);
+            bSuccess = response.getStatusLine().getStatusCode() < 500;
+            return response;
+        }
+        finally
+        {
+            // measured up to the response headers, the content is read by the caller.
+            if(request.isAborted())
+                limiter.releaseUnmeasured();
+            else
+                limiter.release(acquiredAt, 0, bSuccess);
+        }
+    }
+
+    private void recordResponseTime(long millis)
+    {
+        long average = mAverageResponseMillis;
+        mAverageResponseMillis = average < 0 ? millis : (average * 3 + millis) / 4;
+    }
+
+    /**
+     * @return
+     * A moving average of how long requests take until their response headers are received, or -1 if
+     * no request has completed yet.
+     */
+    public long getAverageResponseMillis()
+    {
+        return mAverageResponseMillis;
+    }
+
+    /**
+     * Closes connections that have been idle in the pool for longer than the given time.
+     *
+     * @param idleTime
+     * The idle time.
+     * @param unit
+     * The unit of the idle time.
+     */
+    public void closeIdleConnections(long idleTime, TimeUnit unit)
+    {
+        mConnManager.closeExpiredConnections();
+        mConnManager.closeIdleConnections(idleTime, unit);
+    }
+
+    /**
+     * Closes all connections.  The transport cannot be used afterwards.
+     */
+    public void shutdown()
+    {
+        mConnManager.shutdown();
+    }
+
+    /**
+     * @return
+     * A snapshot of the current state of the connection pool.
+     */
+    public ConnectionPoolStats getPoolStats()
+    {
+        return mConnManager.getStats();
+    }
+
+    /**
+     * Counts the connections handed out by the pool and whether they were already open, meaning
+     * that an earlier request's connection was kept alive and reused.
+     */
+    private static class PoolTrackingConnManager extends ThreadSafeClientConnManager
+    {
+        private final AtomicInteger mLeasedConnections = new AtomicInteger();
+        private final AtomicLong mTotalLeases = new AtomicLong(),
+                                 mReusedLeases = new AtomicLong();
+
+        PoolTrackingConnManager(HttpParams params, SchemeRegistry schemeRegistry)
+        {
+            super(params, schemeRegistry);
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state)
+        {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest()
+            {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit tunit)
+                        throws InterruptedException, ConnectionPoolTimeoutException
+                {
+                    ManagedClientConnection connection = request.getConnection(timeout, tunit);
+                    mLeasedConnections.incrementAndGet();
+                    mTotalLeases.incrementAndGet();
+                    if(connection.isOpen())
+                        mReusedLeases.incrementAndGet();
+                    return connection;
+                }
+
+                @Override
+                public void abortRequest()
+                {
+                    request.abortRequest();
+                }
+            };
+        }
+
+        @Override
+        public void releaseConnection(ManagedClientConnection conn, long validDuration, TimeUnit timeUnit)
+        {
+            try
+            {
+                super.releaseConnection(conn, validDuration, timeUnit);
+            }
+            finally
+            {
+                mLeasedConnections.decrementAndGet();
+            }
+        }
+
+        ConnectionPoolStats getStats()
+        {
+            int leased = Math.max(0, mLeasedConnections.get());
+            int pooled = getConnectionsInPool();
+            return new ConnectionPoolStats(Math.max(0, pooled - leased), leased,
+                    mTotalLeases.get(), mReusedLeases.get());
+        }
+    }
+}
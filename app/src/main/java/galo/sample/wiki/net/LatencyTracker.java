@@ -0,0 +1,64 @@
+package galo.sample.wiki.net;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latencies of a kind of request, in order to tell how long the slow ones take,
+ * such as the 95th percentile.
+ *
+ * This is thread-safe.
+ */
+public class LatencyTracker
+{
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+    // fewer samples than this say too little about the tail to act on.
+    private static final int MIN_SAMPLES = 20;
+
+    private final long[] mSamples;
+    private int mNext,
+                mCount;
+
+    public LatencyTracker()
+    {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     *
+     * @param windowSize
+     * The number of most recent latencies kept.
+     */
+    public LatencyTracker(int windowSize)
+    {
+        mSamples = new long[Math.max(MIN_SAMPLES, windowSize)];
+    }
+
+    public synchronized void record(long millis)
+    {
+        mSamples[mNext] = millis;
+        mNext = (mNext + 1) % mSamples.length;
+        if(mCount < mSamples.length)
+            mCount++;
+    }
+
+    /**
+     * @param percentile
+     * The percentile, between 0 and 100.
+     * @return
+     * The latency that the given percentage of the recent requests completed within, or -1 if too few
+     * requests have completed to tell.
+     */
+    public long getPercentileMillis(int percentile)
+    {
+        long[] sorted;
+        synchronized (this)
+        {
+            if(mCount < MIN_SAMPLES)
+                return -1;
+            sorted = Arrays.copyOf(mSamples, mCount);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(sorted.length * Math.max(0, Math.min(100, percentile)) / 100.0) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
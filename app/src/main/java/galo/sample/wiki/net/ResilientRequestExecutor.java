@@ -0,0 +1,487 @@
+package galo.sample.wiki.net;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import galo.sample.wiki.concurrent.ExecutorRegistry;
+
+/**
+ * Performs requests of one kind, such as api queries or thumbnail downloads, getting past transient
+ * failures and slow responses:
+ * <ul>
+ * <li>A failed attempt, or one whose response says to try again later, is retried as its
+ * {@link RetryPolicy} allows, waiting at least as long as the server asked for.</li>
+ * <li>An attempt still without a response once the slowest 5% of recent attempts had theirs is
+ * hedged: a second attempt is sent, the first response wins and the other attempt is aborted.</li>
+ * </ul>
+ * Retries and hedges both draw from one {@link RetryBudget}, so that together they never add more
+ * than a small fraction to the requests actually made.
+ *
+ * This is thread-safe.
+ */
+public class ResilientRequestExecutor
+{
+    public static final int DEFAULT_HEDGE_PERCENTILE = 95;
+
+    private final RetryPolicy mPolicy;
+    private final RetryBudget mBudget;
+    private final LatencyTracker mLatency = new LatencyTracker();
+    private final int mHedgePercentile;
+    private final AtomicLong mRetryCount = new AtomicLong(),
+                             mHedgeCount = new AtomicLong(),
+                             mHedgeWinCount = new AtomicLong();
+
+    public ResilientRequestExecutor()
+    {
+        this(new RetryPolicy(), new RetryBudget(), DEFAULT_HEDGE_PERCENTILE);
+    }
+
+    /**
+     *
+     * @param policy
+     * Decides whether and when failed attempts are retried.
+     * @param budget
+     * The budget retries and hedges are taken from.
+     * @param hedgePercentile
+     * The percentile of recent latencies after which an attempt is hedged, 100 or more to never hedge.
+     */
+    public ResilientRequestExecutor(RetryPolicy policy, RetryBudget budget, int hedgePercentile)
+    {
+        if(policy == null)
+            throw new NullPointerException("The retry policy cannot be null.");
+        if(budget == null)
+            throw new NullPointerException("The retry budget cannot be null.");
+        mPolicy = policy;
+        mBudget = budget;
+        mHedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Performs the call, retrying and hedging its attempts as needed, on the calling thread.
+     *
+     * @param call
+     * The call, which must not have been executed before.
+     * @return
+     * The result of the winning attempt.  A result the call still considers retryable is returned
+     * when no retry is left, so that the caller can report it.
+     * @throws IOException
+     * The failure of the last attempt, or if the call was cancelled or the thread interrupted.
+     */
+    public <T> T execute(Call<T> call) throws IOException
+    {
+        mBudget.deposit();
+        for(int retry = 0; ; retry++)
+        {
+            T result = null;
+            IOException failure = null;
+            long retryAfterMillis = -1;
+            try
+            {
+                result = executeHedged(call);
+            }
+            catch (IOException e)
+            {
+                if(call.isCancelled() || Thread.currentThread().isInterrupted() || !call.isRetryable(e))
+                    throw e;
+                failure = e;
+            }
+            if(failure == null)
+            {
+                if(!call.isRetryable(result))
+                    return result;
+                retryAfterMillis = call.getRetryAfterMillis(result);
+            }
+
+            long delay = mPolicy.getRetryDelayMillis(retry, retryAfterMillis);
+            if(delay == RetryPolicy.NO_RETRY || !mBudget.tryWithdraw())
+            {
+                if(failure != null)
+                    throw failure;
+                return result;
+            }
+            if(failure == null)
+                call.discard(result);
+            mRetryCount.incrementAndGet();
+            call.sleep(delay);
+        }
+    }
+
+    private <T> T executeHedged(Call<T> call) throws IOException
+    {
+        long hedgeAfter = mHedgePercentile < 100 ? mLatency.getPercentileMillis(mHedgePercentile) : -1;
+        Attempt<T> primary = call.startAttempt();
+        Hedge<T> hedge = null;
+        if(hedgeAfter >= 0)
+        {
+            hedge = new Hedge<T>(call, primary);
+            hedge.schedule(hedgeAfter);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        T result;
+        try
+        {
+            result = primary.execute();
+        }
+        catch (IOException e)
+        {
+            // a hedge already out gets its chance, it may even be why this attempt was aborted.
+            if(hedge == null || !hedge.isStartedOrDrop())
+                throw e;
+            return hedge.await(e);
+        }
+        mLatency.record(SystemClock.elapsedRealtime() - start);
+
+        if(hedge == null || hedge.claimForPrimary())
+            return result;
+        // the hedge won while this response was on its way.
+        call.discard(result);
+        return hedge.await(null);
+    }
+
+    /**
+     * @return
+     * The number of attempts retried.
+     */
+    public long getRetryCount()
+    {
+        return mRetryCount.get();
+    }
+
+    /**
+     * @return
+     * The number of hedged attempts sent.
+     */
+    public long getHedgeCount()
+    {
+        return mHedgeCount.get();
+    }
+
+    /**
+     * @return
+     * The number of hedged attempts whose response came before that of the attempt they hedged.
+     */
+    public long getHedgeWinCount()
+    {
+        return mHedgeWinCount.get();
+    }
+
+    /**
+     * @return
+     * The number of retries and hedges not made since the budget had run out.
+     */
+    public long getBudgetDeniedCount()
+    {
+        return mBudget.getDeniedCount();
+    }
+
+    /**
+     * @return
+     * The latency after which an attempt is currently hedged, or -1 if not hedging yet.
+     */
+    public long getHedgeThresholdMillis()
+    {
+        return mHedgePercentile < 100 ? mLatency.getPercentileMillis(mHedgePercentile) : -1;
+    }
+
+    /**
+     * One try at a request.  A call creates a new one for every retry and hedge.
+     */
+    public interface Attempt<T>
+    {
+        /**
+         * Sends the request and waits for its response.  Called once, on the caller's thread or, for a
+         * hedge, on a network thread.
+         */
+        T execute() throws IOException;
+
+        /**
+         * Aborts the attempt from another thread, making {@link #execute()} fail right away.
+         */
+        void abort();
+    }
+
+    /**
+     * A request to be executed by a {@link ResilientRequestExecutor}, with what it takes to tell
+     * whether its responses are to be kept.  It can be cancelled from any thread, aborting its
+     * attempts and any wait before a retry.
+     */
+    public static abstract class Call<T>
+    {
+        // kept after they complete, the response of the winning one is read after execute returns.
+        private final List<Attempt<T>> mAttempts = new ArrayList<Attempt<T>>();
+        private boolean bCancelled;
+
+        /**
+         * @return
+         * A new attempt at the request.
+         */
+        protected abstract Attempt<T> newAttempt() throws IOException;
+
+        /**
+         * @return
+         * True if the response tells of a transient failure, so that the request should be tried again.
+         */
+        protected abstract boolean isRetryable(T result);
+
+        /**
+         * @return
+         * The wait the response asked for before trying again, or -1 if it did not ask for any.
+         */
+        protected abstract long getRetryAfterMillis(T result);
+
+        /**
+         * Lets go of a response that will not be used, handing back its connection.
+         */
+        protected abstract void discard(T result);
+
+        /**
+         * @return
+         * True if the failure may be transient.  By default anything but an interruption is, a
+         * timeout included.
+         */
+        protected boolean isRetryable(IOException failure)
+        {
+            return !(failure instanceof InterruptedIOException) || failure instanceof SocketTimeoutException;
+        }
+
+        /**
+         * Cancels the call, aborting its attempts, which closes the connection of a response still
+         * being read.
+         */
+        public final void cancel()
+        {
+            List<Attempt<T>> attempts;
+            synchronized (this)
+            {
+                if(bCancelled)
+                    return;
+                bCancelled = true;
+                attempts = new ArrayList<Attempt<T>>(mAttempts);
+                // wakes up a wait before a retry.
+                notifyAll();
+            }
+            for(Attempt<T> attempt : attempts)
+                attempt.abort();
+        }
+
+        public final synchronized boolean isCancelled()
+        {
+            return bCancelled;
+        }
+
+        synchronized Attempt<T> startAttempt() throws IOException
+        {
+            if(bCancelled)
+                throw new IOException("The call was cancelled.");
+            Attempt<T> attempt = newAttempt();
+            mAttempts.add(attempt);
+            return attempt;
+        }
+
+        synchronized void sleep(long millis) throws IOException
+        {
+            long deadline = SystemClock.elapsedRealtime() + millis;
+            long remaining;
+            while(!bCancelled && (remaining = deadline - SystemClock.elapsedRealtime()) > 0)
+            {
+                try
+                {
+                    wait(remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting to retry.");
+                }
+            }
+            if(bCancelled)
+                throw new IOException("The call was cancelled.");
+        }
+    }
+
+    /**
+     * A second attempt at a call, sent if the primary attempt has no response after a while.  Whichever
+     * of the two gets a response first wins, and the other is aborted or its response discarded.
+     */
+    private class Hedge<T> implements Runnable
+    {
+        private static final int PENDING = 0,
+                                 RUNNING = 1,
+                                 DONE = 2,
+                                 DROPPED = 3;
+
+        private final Call<T> mCall;
+        private final Attempt<T> mPrimary;
+        private Future<?> mFuture;
+        private volatile Attempt<T> mAttempt;
+        // guarded by this.
+        private int mState = PENDING;
+        private boolean bPrimaryWon,
+                        bHedgeWon;
+        private T mResult;
+        private IOException mFailure;
+
+        Hedge(Call<T> call, Attempt<T> primary)
+        {
+            mCall = call;
+            mPrimary = primary;
+        }
+
+        /**
+         * Sends the hedge after the delay, unless dropped by then.  The scheduled pool only times it,
+         * the attempt blocks on a network thread.
+         */
+        synchronized void schedule(long delayMillis)
+        {
+            mFuture = ExecutorRegistry.getScheduledExecutor().schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (Hedge.this)
+                    {
+                        if(mState != PENDING)
+                            return;
+                    }
+                    ExecutorRegistry.getExecutor(null, ExecutorRegistry.Role.NETWORK_IO).execute(Hedge.this);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run()
+        {
+            synchronized (this)
+            {
+                if(mState != PENDING)
+                    return;
+                if(mCall.isCancelled() || !mBudget.tryWithdraw())
+                {
+                    mState = DROPPED;
+                    notifyAll();
+                    return;
+                }
+                mState = RUNNING;
+            }
+            mHedgeCount.incrementAndGet();
+
+            T result = null;
+            IOException failure = null;
+            long start = SystemClock.elapsedRealtime();
+            try
+            {
+                mAttempt = mCall.startAttempt();
+                result = mAttempt.execute();
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+
+            boolean bKeep;
+            synchronized (this)
+            {
+                bKeep = failure == null && !bPrimaryWon;
+                if(bKeep)
+                {
+                    bHedgeWon = true;
+                    mResult = result;
+                }
+                mFailure = failure;
+                mState = DONE;
+                notifyAll();
+            }
+            if(failure == null)
+                mLatency.record(SystemClock.elapsedRealtime() - start);
+            if(bKeep)
+            {
+                mHedgeWinCount.incrementAndGet();
+                mPrimary.abort();
+            }
+            else if(failure == null)
+                mCall.discard(result);
+        }
+
+        /**
+         * @return
+         * True if the hedge was sent, otherwise it is dropped so that it never is.
+         */
+        synchronized boolean isStartedOrDrop()
+        {
+            if(mState == PENDING)
+            {
+                mState = DROPPED;
+                mFuture.cancel(false);
+            }
+            return mState == RUNNING || mState == DONE;
+        }
+
+        /**
+         * Called once the primary attempt has its response.
+         *
+         * @return
+         * True if the primary attempt wins, the hedge is then dropped or aborted.  False if the hedge
+         * already won.
+         */
+        boolean claimForPrimary()
+        {
+            synchronized (this)
+            {
+                if(bHedgeWon)
+                    return false;
+                bPrimaryWon = true;
+                if(mState == PENDING)
+                {
+                    mState = DROPPED;
+                    mFuture.cancel(false);
+                }
+                if(mState != RUNNING)
+                    return true;
+            }
+            Attempt<T> attempt = mAttempt;
+            if(attempt != null)
+                attempt.abort();
+            return true;
+        }
+
+        /**
+         * Waits for the hedge to complete.
+         *
+         * @param primaryFailure
+         * The failure of the primary attempt, thrown if the hedge fails too, null if it succeeded.
+         * @return
+         * The hedge's result, if it won.
+         */
+        T await(IOException primaryFailure) throws IOException
+        {
+            synchronized (this)
+            {
+                try
+                {
+                    while(mState == RUNNING)
+                        wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    // nobody is taking the hedge's result anymore, it discards it itself.
+                    bPrimaryWon = true;
+                    throw new InterruptedIOException("Interrupted waiting for the hedged request.");
+                }
+                if(bHedgeWon)
+                    return mResult;
+                throw mFailure != null ? mFailure : primaryFailure != null ? primaryFailure
+                        : new IOException("The hedged request was dropped.");
+            }
+        }
+    }
+}
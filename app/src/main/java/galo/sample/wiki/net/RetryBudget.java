@@ -0,0 +1,72 @@
+package galo.sample.wiki.net;
+
+/**
+ * Bounds the extra load retries and hedged requests put on a server to a fraction of the actual
+ * requests.  Every request deposits a fraction of a token and every retry or hedge withdraws a whole
+ * one, so that while a server is failing most requests, the requests to it are not multiplied by the
+ * number of attempts on top of it.  A few tokens are there from the start so that the first failures
+ * can be retried.
+ *
+ * This is thread-safe.
+ */
+public class RetryBudget
+{
+    public static final float DEFAULT_RATIO = 0.1f;
+    public static final int DEFAULT_MAX_TOKENS = 10;
+
+    private final float mRatio;
+    private final float mMaxTokens;
+    private float mTokens;
+    private long mDeniedCount;
+
+    public RetryBudget()
+    {
+        this(DEFAULT_RATIO, DEFAULT_MAX_TOKENS);
+    }
+
+    /**
+     *
+     * @param ratio
+     * The number of extra attempts allowed per request, in the long run.
+     * @param maxTokens
+     * The number of extra attempts that can be saved up, and that are available from the start.
+     */
+    public RetryBudget(float ratio, int maxTokens)
+    {
+        mRatio = Math.max(0, ratio);
+        mMaxTokens = Math.max(1, maxTokens);
+        mTokens = mMaxTokens;
+    }
+
+    /**
+     * Records a request, adding to the budget.
+     */
+    public synchronized void deposit()
+    {
+        mTokens = Math.min(mMaxTokens, mTokens + mRatio);
+    }
+
+    /**
+     * @return
+     * True if an extra attempt may be made, which is then taken from the budget.
+     */
+    public synchronized boolean tryWithdraw()
+    {
+        if(mTokens < 1)
+        {
+            mDeniedCount++;
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+
+    /**
+     * @return
+     * The number of retries and hedges that were not made because the budget ran out.
+     */
+    public synchronized long getDeniedCount()
+    {
+        return mDeniedCount;
+    }
+}
@@ -0,0 +1,146 @@
+package galo.sample.wiki.net;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Decides whether and when a failed request is tried again.  Retries back off exponentially with
+ * full jitter, i.e. the n-th retry waits a random time between 0 and {@code baseDelay * 2^n}, capped,
+ * so that clients failing together do not all come back together.  A server asking for a longer
+ * wait through {@code Retry-After} is obeyed, and one asking for a wait longer than this policy is
+ * willing to make is not retried at all.
+ *
+ * This is immutable and thread-safe.
+ */
+public class RetryPolicy
+{
+    public static final String RETRY_AFTER_HEADER = "Retry-After";
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BASE_DELAY_MS = 200,
+                             DEFAULT_MAX_DELAY_MS = 5 * 1000;
+
+    /**
+     * Returned by {@link #getRetryDelayMillis(int, long)} when the request must not be retried.
+     */
+    public static final long NO_RETRY = -1;
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis,
+                       mMaxDelayMillis;
+    private final Random mRandom = new Random();
+
+    public RetryPolicy()
+    {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    /**
+     *
+     * @param maxAttempts
+     * The maximum number of times a request is tried, the first time included.
+     * @param baseDelayMillis
+     * The upper bound of the wait before the first retry, doubled for every retry after it.
+     * @param maxDelayMillis
+     * The longest this policy waits before a retry, including waits asked for by the server.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis)
+    {
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mBaseDelayMillis = Math.max(1, baseDelayMillis);
+        mMaxDelayMillis = Math.max(mBaseDelayMillis, maxDelayMillis);
+    }
+
+    public int getMaxAttempts()
+    {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @param retry
+     * The number of retries made so far, 0 before the first one.
+     * @param retryAfterMillis
+     * The wait the server asked for, or a negative number if it did not ask for any.
+     * @return
+     * How long to wait before the retry, or {@link #NO_RETRY} if there are no attempts left or the
+     * server asked for a longer wait than this policy allows.
+     */
+    public long getRetryDelayMillis(int retry, long retryAfterMillis)
+    {
+        if(retry + 1 >= mMaxAttempts || retryAfterMillis > mMaxDelayMillis)
+            return NO_RETRY;
+        // capped before shifting so that a large retry count cannot overflow.
+        long ceiling = mBaseDelayMillis << Math.min(retry, 20);
+        ceiling = Math.min(mMaxDelayMillis, ceiling);
+        long jittered;
+        synchronized (mRandom)
+        {
+            jittered = (long) (mRandom.nextDouble() * (ceiling + 1));
+        }
+        return Math.max(jittered, retryAfterMillis);
+    }
+
+    /**
+     * @param statusCode
+     * The http status code of a response.
+     * @return
+     * True if the status tells of a transient condition, one that trying again later may get past.
+     */
+    public static boolean isRetryableStatus(int statusCode)
+    {
+        switch (statusCode)
+        {
+            case 408: // request timeout
+            case 429: // too many requests
+            case 500:
+            case 502:
+            case 503:
+            case 504:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Parses the value of a {@code Retry-After} header, which is either a number of seconds or an
+     * http date.
+     *
+     * @param value
+     * The header value, null if there is none.
+     * @return
+     * The wait asked for in milliseconds, 0 if the date has passed, or -1 if there is no value or it
+     * cannot be parsed.
+     */
+    public static long parseRetryAfterMillis(String value)
+    {
+        if(value == null || (value = value.trim()).length() == 0)
+            return -1;
+        try
+        {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        }
+        catch (NumberFormatException e)
+        {
+            // not seconds, try a date.
+        }
+        // SimpleDateFormat is not thread-safe, and retries are too rare to bother sharing one.
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try
+        {
+            Date date = format.parse(value);
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+        catch (ParseException e)
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package galo.sample.wiki.search;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Decides when a search should go out while the user is typing, replacing a fixed delay after every
+ * keystroke.  The first keystroke after a pause searches immediately.  Keystrokes after that are
+ * debounced by a delay that follows the user's own typing rhythm, a little longer than their usual
+ * gap between keystrokes, so that a fast typist does not wait for a fixed half second on every pause.
+ * Searches are also never fired closer together than a fraction of the measured round trip time, so
+ * that a slow network is not flooded with requests that will only be superseded.
+ *
+ * Everything runs on the given Handler, no thread is created.  All methods must be called on the
+ * Handler's thread.
+ */
+public class AdaptiveSearchScheduler
+{
+    public static final long MIN_DELAY_MS = 120,
+                             MAX_DELAY_MS = 600,
+                             MAX_SPACING_MS = 1000;
+
+    // keystrokes further apart than this start a new burst of typing.
+    private static final long BURST_GAP_MS = 1500;
+    // how much longer than a usual keystroke gap to wait before assuming the user paused.
+    private static final float DELAY_TO_GAP_RATIO = 1.5f;
+    // fraction of the round trip time searches are kept apart by.
+    private static final float SPACING_TO_ROUND_TRIP_RATIO = 0.5f;
+    private static final long INITIAL_KEYSTROKE_GAP_MS = 250;
+
+    private final Handler mHandler;
+    private Runnable mPendingSearch;
+    private final Runnable mFireRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            fire();
+        }
+    };
+
+    private long mLastKeystrokeTime = -1,
+                 mLastFireTime = -1;
+    private float mAverageKeystrokeGapMs = INITIAL_KEYSTROKE_GAP_MS;
+    private long mRoundTripMillis = -1;
+
+    /**
+     *
+     * @param handler
+     * The handler the searches are run on, usually one of the Main Looper thread.
+     */
+    public AdaptiveSearchScheduler(Handler handler)
+    {
+        if(handler == null)
+            throw new NullPointerException("The handler cannot be null.");
+        mHandler = handler;
+    }
+
+    /**
+     * Lets the scheduler know how long searches currently take, so that it can space them out on a
+     * slow network.
+     *
+     * @param roundTripMillis
+     * The current round trip time or a negative value if unknown.
+     */
+    public void setRoundTripMillis(long roundTripMillis)
+    {
+        mRoundTripMillis = roundTripMillis;
+    }
+
+    /**
+     * Called on every keystroke with the search for the new text, which replaces any search that has
+     * not gone out yet.
+     *
+     * @param search
+     * The search to run once the scheduler decides the time has come.
+     */
+    public void onInput(Runnable search)
+    {
+        long now = SystemClock.uptimeMillis();
+        long gap = mLastKeystrokeTime < 0 ? Long.MAX_VALUE : now - mLastKeystrokeTime;
+        mLastKeystrokeTime = now;
+        boolean bNewBurst = gap > BURST_GAP_MS;
+        if(!bNewBurst)
+            mAverageKeystrokeGapMs = mAverageKeystrokeGapMs * 0.7f + gap * 0.3f;
+
+        mHandler.removeCallbacks(mFireRunnable);
+        mPendingSearch = search;
+
+        long fireTime = bNewBurst ? now : now + getDebounceDelayMillis();
+        if(mLastFireTime >= 0)
+            fireTime = Math.max(fireTime, mLastFireTime + getMinimumSpacingMillis());
+        if(fireTime <= now)
+            fire();
+        else
+            mHandler.postAtTime(mFireRunnable, fireTime);
+    }
+
+    /**
+     * Drops the search that has not gone out yet, if any.
+     */
+    public void cancel()
+    {
+        mHandler.removeCallbacks(mFireRunnable);
+        mPendingSearch = null;
+    }
+
+    /**
+     * @return
+     * How long the scheduler currently waits after a keystroke, within a burst of typing, before
+     * searching.
+     */
+    public long getDebounceDelayMillis()
+    {
+        long delay = (long) (mAverageKeystrokeGapMs * DELAY_TO_GAP_RATIO);
+        return Math.max(MIN_DELAY_MS, Math.min(MAX_DELAY_MS, delay));
+    }
+
+    /**
+     * @return
+     * The minimum time kept between two searches, based on the round trip time.
+     */
+    public long getMinimumSpacingMillis()
+    {
+        if(mRoundTripMillis <= 0)
+            return 0;
+        return Math.min(MAX_SPACING_MS, (long) (mRoundTripMillis * SPACING_TO_ROUND_TRIP_RATIO));
+    }
+
+    private void fire()
+    {
+        Runnable search = mPendingSearch;
+        mPendingSearch = null;
+        if(search != null)
+        {
+            mLastFireTime = SystemClock.uptimeMillis();
+            search.run();
+        }
+    }
+}
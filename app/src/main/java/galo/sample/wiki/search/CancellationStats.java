@@ -0,0 +1,47 @@
+package galo.sample.wiki.search;
+
+/**
+ * Keeps track of how long it takes, from the moment a search is cancelled, for the search thread to
+ * stop and for its connection to be released.
+ *
+ * This is thread-safe.
+ */
+public final class CancellationStats
+{
+    private long mCount,
+                 mTotalMillis,
+                 mMaxMillis;
+
+    synchronized void record(long cancelToReleaseMillis)
+    {
+        long millis = Math.max(0, cancelToReleaseMillis);
+        mCount++;
+        mTotalMillis += millis;
+        mMaxMillis = Math.max(mMaxMillis, millis);
+    }
+
+    /**
+     * @return
+     * The number of searches that were cancelled while queued or running.
+     */
+    public synchronized long getCount()
+    {
+        return mCount;
+    }
+
+    public synchronized long getAverageMillis()
+    {
+        return mCount == 0 ? 0 : mTotalMillis / mCount;
+    }
+
+    public synchronized long getMaxMillis()
+    {
+        return mMaxMillis;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "cancelled=" + mCount + " avgReleaseMs=" + getAverageMillis() + " maxReleaseMs=" + mMaxMillis;
+    }
+}
@@ -0,0 +1,167 @@
+package galo.sample.wiki.search;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs searches on a small, fixed number of threads where the newest search always wins.  When a
+ * search is submitted, every search still waiting for a thread is cancelled since newer input has
+ * superseded it, and if all threads are busy the oldest running search is cancelled, aborting its
+ * request, so that the newest one goes out right away.  At most {@code maxConcurrent - 1} stale
+ * searches are therefore ever allowed to finish alongside the newest one.
+ *
+ * However fast the user types, there are never more than {@code maxConcurrent} searches running and
+ * never more than one search waiting for a thread.  The threads themselves belong to the backing
+ * executor, which may be shared with other work.
+ *
+ * This is thread-safe.
+ */
+class LatestWinsSearchExecutor
+{
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+
+    private final int mMaxConcurrent;
+    private final Executor mExecutor;
+    private final Deque<Task> mPending = new ArrayDeque<Task>();
+    // oldest first.
+    private final List<Task> mRunning = new ArrayList<Task>();
+    private int mWorkerCount;
+    private long mSupersededCount,
+                 mPreemptedCount;
+
+    /**
+     *
+     * @param maxConcurrent
+     * The maximum number of searches running at the same time.
+     * @param executor
+     * The executor the searches run on.
+     */
+    LatestWinsSearchExecutor(int maxConcurrent, Executor executor)
+    {
+        if(executor == null)
+            throw new NullPointerException("The executor cannot be null.");
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+        mExecutor = executor;
+    }
+
+    /**
+     * Submits the search, superseding every search that has not started yet and, if need be, the
+     * oldest running one.
+     *
+     * @param handle
+     * The handle of the search, used to cancel it when superseded.
+     * @param search
+     * The search, which must return quickly once its handle is cancelled.
+     */
+    void submit(SearchHandle handle, Runnable search)
+    {
+        List<SearchHandle> superseded = new ArrayList<SearchHandle>();
+        boolean bStartWorker;
+        synchronized (this)
+        {
+            for(Task task : mPending)
+                superseded.add(task.handle);
+            mSupersededCount += mPending.size();
+            mPending.clear();
+
+            // only searches that are still wanted count against the limit, cancelled ones are
+            // already letting go of their thread.
+            int liveCount = 0;
+            for(Task task : mRunning)
+                if(task.handle.isActive())
+                    liveCount++;
+            for(int i = 0; i < mRunning.size() && liveCount >= mMaxConcurrent; i++)
+            {
+                SearchHandle runningHandle = mRunning.get(i).handle;
+                if(runningHandle.isActive())
+                {
+                    superseded.add(runningHandle);
+                    mPreemptedCount++;
+                    liveCount--;
+                }
+            }
+
+            mPending.add(new Task(handle, search));
+            bStartWorker = mWorkerCount < mMaxConcurrent;
+            if(bStartWorker)
+                mWorkerCount++;
+        }
+
+        // cancel outside the lock since completion listeners run on this thread.
+        for(SearchHandle supersededHandle : superseded)
+            supersededHandle.cancel();
+        if(bStartWorker)
+            mExecutor.execute(mWorker);
+    }
+
+    private final Runnable mWorker = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            while(true)
+            {
+                Task task;
+                synchronized (LatestWinsSearchExecutor.this)
+                {
+                    task = mPending.poll();
+                    if(task == null)
+                    {
+                        mWorkerCount--;
+                        return;
+                    }
+                    mRunning.add(task);
+                }
+                try
+                {
+                    task.search.run();
+                }
+                catch(RuntimeException e)
+                {
+                    // keep the worker alive for the searches that are still to come.
+                    e.printStackTrace();
+                }
+                finally
+                {
+                    synchronized (LatestWinsSearchExecutor.this)
+                    {
+                        mRunning.remove(task);
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * @return
+     * The number of searches dropped before they started because newer input superseded them.
+     */
+    synchronized long getSupersededCount()
+    {
+        return mSupersededCount;
+    }
+
+    /**
+     * @return
+     * The number of running searches cancelled to make room for a newer one.
+     */
+    synchronized long getPreemptedCount()
+    {
+        return mPreemptedCount;
+    }
+
+    private static final class Task
+    {
+        final SearchHandle handle;
+        final Runnable search;
+
+        Task(SearchHandle handle, Runnable search)
+        {
+            this.handle = handle;
+            this.search = search;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package galo.sample.wiki.search;
+
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import galo.sample.wiki.api.ImageQueryResults;
+import galo.sample.wiki.api.Page;
+import galo.sample.wiki.api.Thumbnail;
+import galo.sample.wiki.api.WikiImageQuery;
+import galo.sample.wiki.util.ResourceProfile;
+
+/**
+ * A bounded, in-memory cache of parsed query results so that retyping a previous search term does
+ * not go back to the network.  Entries are evicted least recently used first once the estimated size
+ * of all the results goes over the limit, and are ignored once they are older than the time to live.
+ *
+ * Each entry also keeps the normalized titles of its pages, an index that lets the results of a
+ * term be narrowed down locally to the results of a longer term starting with it, see
+ * {@link #findProvisionalResults(String, int, int, String)}.
+ *
+ * This is thread-safe.
+ */
+public class QueryResultCache
+{
+    public static final int DEFAULT_MAX_SIZE_BYTES = 512 * 1024;
+    // of the app's heap, the default for a 64 megabyte heap, within these bounds.
+    private static final int HEAP_FRACTION = 128,
+                             MIN_SIZE_BYTES = 256 * 1024,
+                             MAX_SIZE_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_TIME_TO_LIVE_MS = 10 * 60 * 1000;
+
+    // rough per-object costs used to estimate the memory held by a result set.
+    private static final int RESULTS_OVERHEAD_BYTES = 64,
+                             PAGE_OVERHEAD_BYTES = 64,
+                             THUMBNAIL_OVERHEAD_BYTES = 48;
+
+    private static final Comparator<Page> PAGE_INDEX_COMPARATOR = new Comparator<Page>()
+    {
+        @Override
+        public int compare(Page lhs, Page rhs)
+        {
+            return lhs.getIndex() - rhs.getIndex();
+        }
+    };
+
+    private final LruCache<String, Entry> mCache;
+    private final long mTimeToLiveMillis;
+    private final AtomicLong mHitCount = new AtomicLong(),
+                             mMissCount = new AtomicLong(),
+                             mExpiredCount = new AtomicLong();
+
+    public QueryResultCache()
+    {
+        this(DEFAULT_MAX_SIZE_BYTES, DEFAULT_TIME_TO_LIVE_MS);
+    }
+
+    /**
+     * @param heapLimitBytes
+     * The most bytes the app's heap may grow to, see {@link ResourceProfile#getHeapLimitBytes()}.
+     * @return
+     * The size a cache should be given on a heap of that limit.
+     */
+    public static int getMaxSizeBytesForHeap(long heapLimitBytes)
+    {
+        return (int) Math.max(MIN_SIZE_BYTES, Math.min(heapLimitBytes / HEAP_FRACTION, MAX_SIZE_BYTES));
+    }
+
+    /**
+     *
+     * @param maxSizeBytes
+     * The estimated number of bytes all the cached results may take up before the least recently used
+     * ones are evicted.
+     * @param timeToLiveMillis
+     * How long results stay valid after having been put into the cache.
+     */
+    public QueryResultCache(int maxSizeBytes, long timeToLiveMillis)
+    {
+        mTimeToLiveMillis = timeToLiveMillis;
+        mCache = new LruCache<String, Entry>(Math.max(1, maxSizeBytes))
+        {
+            @Override
+            protected int sizeOf(String key, Entry value)
+            {
+                return value.sizeBytes;
+            }
+        };
+    }
+
+    /**
+     * Normalizes a search term the way Wikipedia's prefixsearch treats it, so that terms returning the
+     * same results share a cache entry: surrounding whitespace is ignored, runs of spaces and
+     * underscores become one space, the text is put in Unicode NFC form, and since prefixsearch
+     * matches titles without regard to case, the text is lower cased.
+     *
+     * @param term
+     * The term as typed by the user.
+     * @return
+     * The normalized term, never null.
+     */
+    public static String normalizeTerm(String term)
+    {
+        if(term == null)
+            return "";
+        String normalized = Normalizer.normalize(term, Normalizer.Form.NFC);
+        normalized = normalized.replace('_', ' ').trim().replaceAll("\\s+", " ");
+        return normalized.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param term
+     * The search term, it will be normalized.
+     * @param maxThumbSize
+     * The maximum thumbnail size requested.
+     * @param recordCount
+     * The number of records requested.
+     * @return
+     * The key under which the results for those query parameters are cached.
+     */
+    public static String createKey(String term, int maxThumbSize, int recordCount)
+    {
+        return createKeyPrefix(maxThumbSize, recordCount) + normalizeTerm(term);
+    }
+
+    private static String createKeyPrefix(int maxThumbSize, int recordCount)
+    {
+        return maxThumbSize + ":" + recordCount + ":";
+    }
+
+    /**
+     * @param query
+     * The query.
+     * @return
+     * The key under which the results of the query are cached.
+     */
+    public static String createKey(WikiImageQuery query)
+    {
+        return createKey(query.getSearchTerm(), query.getMaxThumbSize(), query.getRecordCount());
+    }
+
+    /**
+     * Retrieves unexpired results.
+     *
+     * @param key
+     * The key created by {@link #createKey(String, int, int)}.
+     * @return
+     * The cached results, or null if none are cached or they have expired.
+     */
+    public ImageQueryResults get(String key)
+    {
+        Entry entry = mCache.get(key);
+        if(entry != null && SystemClock.elapsedRealtime() - entry.createdAt > mTimeToLiveMillis)
+        {
+            mCache.remove(key);
+            mExpiredCount.incrementAndGet();
+            entry = null;
+        }
+
+        if(entry == null)
+        {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        mHitCount.incrementAndGet();
+        return entry.results;
+    }
+
+    /**
+     * Caches results, replacing any previous results with the same key.
+     *
+     * @param key
+     * The key created by {@link #createKey(String, int, int)}.
+     * @param results
+     * The results to cache.
+     */
+    public void put(String key, ImageQueryResults results)
+    {
+        if(key != null && results != null)
+            mCache.put(key, new Entry(results, estimateSizeBytes(results), SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Since prefixsearch only returns titles starting with the search term, the results of a longer
+     * term are among the results of any shorter term it starts with.  This finds the cached results
+     * of the longest such shorter term and keeps only the pages whose title also starts with the
+     * longer term, giving a close guess at the actual results without going to the network.
+     *
+     * The guess can miss pages, since the shorter term's results are capped at the record count.
+     *
+     * @param term
+     * The search term to guess the results for.
+     * @param maxThumbSize
+     * The maximum thumbnail size of the query.
+     * @param recordCount
+     * The record count of the query.
+     * @param requestId
+     * The request id to give the guessed results.
+     * @return
+     * Provisional results, re-indexed from 1 in their original order, or null if there are no cached
+     * results to derive them from or none of the pages match.
+     */
+    public ImageQueryResults findProvisionalResults(String term, int maxThumbSize, int recordCount, String requestId)
+    {
+        String normalizedTerm = normalizeTerm(term);
+        if(normalizedTerm.isEmpty())
+            return null;
+
+        String keyPrefix = createKeyPrefix(maxThumbSize, recordCount);
+        long now = SystemClock.elapsedRealtime();
+        Entry bestEntry = null;
+        int bestTermLength = 0;
+        for(Map.Entry<String, Entry> cached : mCache.snapshot().entrySet())
+        {
+            String key = cached.getKey();
+            Entry entry = cached.getValue();
+            if(!key.startsWith(keyPrefix) || now - entry.createdAt > mTimeToLiveMillis)
+                continue;
+            int termLength = key.length() - keyPrefix.length();
+            if(termLength > bestTermLength && termLength < normalizedTerm.length()
+                    && normalizedTerm.startsWith(key.substring(keyPrefix.length())))
+            {
+                bestEntry = entry;
+                bestTermLength = termLength;
+            }
+        }
+        if(bestEntry == null)
+            return null;
+
+        List<Page> pages = bestEntry.results.getPages();
+        List<Page> matchingPages = new ArrayList<Page>();
+        for(int i = 0; i < pages.size(); i++)
+        {
+            if(bestEntry.normalizedTitles[i].startsWith(normalizedTerm))
+                matchingPages.add(pages.get(i));
+        }
+        if(matchingPages.isEmpty())
+            return null;
+
+        Collections.sort(matchingPages, PAGE_INDEX_COMPARATOR);
+        List<Page> indexedPages = new ArrayList<Page>(matchingPages.size());
+        for(int i = 0; i < matchingPages.size(); i++)
+        {
+            Page page = matchingPages.get(i);
+            indexedPages.add(new Page(page.getPageId(), page.getNs(), page.getTitle(), i + 1, page.getThumbNail()));
+        }
+        return new ImageQueryResults(indexedPages, requestId, true);
+    }
+
+    public void remove(String key)
+    {
+        mCache.remove(key);
+    }
+
+    public void clear()
+    {
+        mCache.evictAll();
+    }
+
+    public long getHitCount()
+    {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return
+     * The number of lookups that found nothing, including the ones that found expired results.
+     */
+    public long getMissCount()
+    {
+        return mMissCount.get();
+    }
+
+    public long getExpiredCount()
+    {
+        return mExpiredCount.get();
+    }
+
+    /**
+     * @return
+     * The estimated number of bytes taken up by all the cached results.
+     */
+    public int getSizeBytes()
+    {
+        return mCache.size();
+    }
+
+    public int getMaxSizeBytes()
+    {
+        return mCache.maxSize();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "hits=" + getHitCount() + " misses=" + getMissCount() + " expired=" + getExpiredCount()
+                + " size=" + getSizeBytes() + "/" + getMaxSizeBytes();
+    }
+
+    /**
+     * @return
+     * A rough estimate of the memory held by the result set, the strings being counted as two bytes
+     * per character.
+     */
+    static int estimateSizeBytes(ImageQueryResults results)
+    {
+        int size = RESULTS_OVERHEAD_BYTES + 2 * results.getRequestId().length();
+        List<Page> pages = results.getPages();
+        for(Page page : pages)
+        {
+            size += PAGE_OVERHEAD_BYTES;
+            // the title is held twice, once as is and once normalized for the prefix index.
+            if(page.getTitle() != null)
+                size += 4 * page.getTitle().length();
+            Thumbnail thumbnail = page.getThumbNail();
+            if(thumbnail != null)
+            {
+                size += THUMBNAIL_OVERHEAD_BYTES;
+                if(thumbnail.getSource() != null)
+                    size += 2 * thumbnail.getSource().length();
+            }
+        }
+        return size;
+    }
+
+    private static class Entry
+    {
+        final ImageQueryResults results;
+        final String[] normalizedTitles;
+        final int sizeBytes;
+        final long createdAt;
+
+        Entry(ImageQueryResults results, int sizeBytes, long createdAt)
+        {
+            this.results = results;
+            this.sizeBytes = sizeBytes;
+            this.createdAt = createdAt;
+            List<Page> pages = results.getPages();
+            normalizedTitles = new String[pages.size()];
+            for(int i = 0; i < normalizedTitles.length; i++)
+                normalizedTitles[i] = normalizeTerm(pages.get(i).getTitle());
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package galo.sample.wiki.search;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import galo.sample.wiki.api.ImageQueryResults;
+import galo.sample.wiki.api.ImageQueryResultsFactory;
+import galo.sample.wiki.util.HashUtil;
+
+/**
+ * A size-capped, on-disk cache of parsed query results that outlives the process.  Results are stored
+ * in the compact binary form of {@link ImageQueryResultsFactory#writeBinary} rather than as JSON, one
+ * file per query, and the least recently used files are deleted once the total size goes over the cap.
+ *
+ * All methods touch the disk, so they should not be called on the Main Looper thread.
+ */
+public class QueryResultDiskCache
+{
+    public static final String DEFAULT_PATH = "queryresults";
+    // for a device of a 64 megabyte memory class, see ResourceProfile.getDiskCacheBytes().
+    public static final long DEFAULT_MAX_SIZE_BYTES = 1024 * 1024;
+
+    private static final String TAG = QueryResultDiskCache.class.getSimpleName();
+    private static final String FILE_SUFFIX = ".bin",
+                                TEMP_SUFFIX = ".tmp";
+
+    private final File mCacheDir;
+    private long mMaxSizeBytes;
+    private long mSizeBytes = -1;
+
+    /**
+     * Results read from the disk, along with when they were written.
+     */
+    public static final class CachedResults
+    {
+        public final ImageQueryResults results;
+        public final long savedAtMillis;
+
+        CachedResults(ImageQueryResults results, long savedAtMillis)
+        {
+            this.results = results;
+            this.savedAtMillis = savedAtMillis;
+        }
+
+        /**
+         * @return
+         * How long ago, in milliseconds, the results were written.
+         */
+        public long getAgeMillis()
+        {
+            return Math.max(0, System.currentTimeMillis() - savedAtMillis);
+        }
+    }
+
+    /**
+     *
+     * @param cacheDir
+     * The directory holding the cached results, created if needed.
+     * @param maxSizeBytes
+     * The total number of bytes the cached files may take before the least recently used are deleted.
+     */
+    public QueryResultDiskCache(File cacheDir, long maxSizeBytes)
+    {
+        mCacheDir = cacheDir;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Reads the results cached under the key.
+     *
+     * @param key
+     * The cache key, such as one created by {@link QueryResultCache#createKey(String, int, int)}.
+     * @param requestId
+     * The request id to give the results that are read.
+     * @return
+     * The results or null if nothing usable is cached.
+     */
+    public synchronized CachedResults get(String key, String requestId)
+    {
+        File file = getFileForKey(key);
+        if(!file.exists())
+            return null;
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            long savedAt = in.readLong();
+            ImageQueryResults results = ImageQueryResultsFactory.readBinary(in, requestId);
+            // the modification time is only used to keep track of use for the least recently used eviction.
+            file.setLastModified(System.currentTimeMillis());
+            return new CachedResults(results, savedAt);
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Dropping unreadable cached results.", e);
+            remove(key);
+            return null;
+        }
+        finally
+        {
+            if(in != null)
+            {
+                try {
+                    in.close();
+                } catch (IOException e) {/*do nothing*/}
+            }
+        }
+    }
+
+    /**
+     * Writes the results under the key, replacing anything previously cached.  The results are first
+     * written to a temporary file and then renamed, so that a killed process never leaves behind a
+     * partially written entry.
+     *
+     * @param key
+     * The cache key, such as one created by {@link QueryResultCache#createKey(String, int, int)}.
+     * @param results
+     * The results to cache.
+     */
+    public synchronized void put(String key, ImageQueryResults results)
+    {
+        ensureInitialized();
+        File file = getFileForKey(key);
+        File tempFile = new File(mCacheDir, file.getName() + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        boolean bWritten = false;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeLong(System.currentTimeMillis());
+            ImageQueryResultsFactory.writeBinary(results, out);
+            out.close();
+            out = null;
+
+            long previousLength = file.length();
+            if(tempFile.renameTo(file))
+            {
+                mSizeBytes += file.length() - previousLength;
+                bWritten = true;
+            }
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Unable to cache results.", e);
+        }
+        finally
+        {
+            if(out != null)
+            {
+                try {
+                    out.close();
+                } catch (IOException e) {/*do nothing*/}
+            }
+            if(!bWritten)
+                tempFile.delete();
+        }
+        trimToSize();
+    }
+
+    public synchronized void remove(String key)
+    {
+        ensureInitialized();
+        File file = getFileForKey(key);
+        long length = file.length();
+        if(file.delete())
+            mSizeBytes -= length;
+    }
+
+    /**
+     * @param maxSizeBytes
+     * The total number of bytes the cached files may take from the next results written on.
+     */
+    public synchronized void setMaxSizeBytes(long maxSizeBytes)
+    {
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    public synchronized void clear()
+    {
+        File[] files = mCacheDir.listFiles();
+        if(files != null)
+        {
+            for(File file : files)
+                file.delete();
+        }
+        mSizeBytes = 0;
+    }
+
+    /**
+     * @return
+     * The total number of bytes taken by the cached results.
+     */
+    public synchronized long getSizeBytes()
+    {
+        ensureInitialized();
+        return mSizeBytes;
+    }
+
+    /**
+     * Adds up the size of what is already on disk the first time it is needed, so that constructing
+     * the cache does not touch the disk.
+     */
+    private void ensureInitialized()
+    {
+        if(mSizeBytes >= 0)
+            return;
+        if(!mCacheDir.exists())
+            mCacheDir.mkdirs();
+        mSizeBytes = 0;
+        File[] files = mCacheDir.listFiles();
+        if(files != null)
+        {
+            for(File file : files)
+            {
+                // left over from a process killed in the middle of a write.
+                if(file.getName().endsWith(TEMP_SUFFIX))
+                    file.delete();
+                else
+                    mSizeBytes += file.length();
+            }
+        }
+    }
+
+    private void trimToSize()
+    {
+        if(mSizeBytes <= mMaxSizeBytes)
+            return;
+        File[] files = mCacheDir.listFiles();
+        if(files == null)
+            return;
+        Arrays.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(File lhs, File rhs)
+            {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for(int i = 0; i < files.length && mSizeBytes > mMaxSizeBytes; i++)
+        {
+            long length = files[i].length();
+            if(files[i].delete())
+                mSizeBytes -= length;
+        }
+    }
+
+    private File getFileForKey(String key)
+    {
+        return new File(mCacheDir, hashKey(key) + FILE_SUFFIX);
+    }
+
+    /**
+     * Keys contain user typed text, so a hash of them is used for the file name.
+     */
+    private static String hashKey(String key)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            return HashUtil.toHexString(digest);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            return Integer.toHexString(key.hashCode());
+        }
+        catch (IOException e)
+        {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package galo.sample.wiki.search;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Identifies one search started through {@link WikiPageSearchController#searchAsync} and tracks its
+ * lifecycle.  A search starts out {@link State#QUEUED}, becomes {@link State#RUNNING} once a search
+ * thread picks it up, and ends either {@link State#CANCELLED} by its owner or {@link State#DELIVERED}
+ * once the listener has been given its final results or error.
+ *
+ * Every transition is a single compare-and-set, so no thread ever blocks on another to check or
+ * change the state, and when cancellation and delivery race exactly one of them wins.  Completion
+ * listeners are called exactly once, on the thread that made the winning transition.
+ */
+public final class SearchHandle
+{
+    public enum State
+    {
+        QUEUED, RUNNING, CANCELLED, DELIVERED
+    }
+
+    /**
+     * Notified once the search has ended, whether cancelled or delivered.
+     */
+    public interface CompletionListener
+    {
+        public void onSearchCompleted(SearchHandle handle);
+    }
+
+    private static final AtomicLong sNextId = new AtomicLong();
+
+    // a sentinel marking that the completion listeners have already been called.
+    private static final ListenerNode COMPLETED = new ListenerNode(null, null);
+
+    private final long mId;
+    private final String mRequestId;
+    private final AtomicReference<State> mState = new AtomicReference<State>(State.QUEUED);
+    private final AtomicReference<ListenerNode> mListeners = new AtomicReference<ListenerNode>();
+
+    SearchHandle()
+    {
+        mId = sNextId.incrementAndGet();
+        mRequestId = Long.toString(mId);
+    }
+
+    public long getId()
+    {
+        return mId;
+    }
+
+    /**
+     * @return
+     * The request id sent with the query and echoed back in the {@link galo.sample.wiki.api.ImageQueryResults}.
+     */
+    public String getRequestId()
+    {
+        return mRequestId;
+    }
+
+    public State getState()
+    {
+        return mState.get();
+    }
+
+    /**
+     * @return
+     * True while the search is queued or running, meaning its results are still wanted.
+     */
+    public boolean isActive()
+    {
+        State state = mState.get();
+        return state == State.QUEUED || state == State.RUNNING;
+    }
+
+    public boolean isCancelled()
+    {
+        return mState.get() == State.CANCELLED;
+    }
+
+    /**
+     * Moves the search from queued to running.
+     *
+     * @return
+     * True if the search should go ahead, false if it has been cancelled or already delivered.
+     */
+    boolean markRunning()
+    {
+        return mState.compareAndSet(State.QUEUED, State.RUNNING);
+    }
+
+    /**
+     * Cancels the search if it is still queued or running.
+     *
+     * @return
+     * True if this call cancelled the search, false if it had already ended.
+     */
+    public boolean cancel()
+    {
+        return finish(State.CANCELLED);
+    }
+
+    /**
+     * Ends the search right before its final results or error are given to the listener.
+     *
+     * @return
+     * True if the listener should be called, false if the search was cancelled or already delivered.
+     */
+    boolean markDelivered()
+    {
+        return finish(State.DELIVERED);
+    }
+
+    private boolean finish(State terminalState)
+    {
+        while(true)
+        {
+            State state = mState.get();
+            if(state != State.QUEUED && state != State.RUNNING)
+                return false;
+            if(mState.compareAndSet(state, terminalState))
+            {
+                notifyCompletion();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds a listener to be called once the search ends.  If it already has, the listener is called
+     * right away on the calling thread.
+     *
+     * @param listener
+     * The listener.
+     */
+    public void addCompletionListener(CompletionListener listener)
+    {
+        while(true)
+        {
+            ListenerNode head = mListeners.get();
+            if(head == COMPLETED)
+            {
+                listener.onSearchCompleted(this);
+                return;
+            }
+            if(mListeners.compareAndSet(head, new ListenerNode(listener, head)))
+                return;
+        }
+    }
+
+    private void notifyCompletion()
+    {
+        ListenerNode head = mListeners.getAndSet(COMPLETED);
+        // the listeners are stacked, call them back in the order they were added.
+        ListenerNode reversed = null;
+        for(ListenerNode node = head; node != null; node = node.next)
+            reversed = new ListenerNode(node.listener, reversed);
+        for(ListenerNode node = reversed; node != null; node = node.next)
+            node.listener.onSearchCompleted(this);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SearchHandle#" + mId + "[" + mState.get() + "]";
+    }
+
+    private static final class ListenerNode
+    {
+        final CompletionListener listener;
+        final ListenerNode next;
+
+        ListenerNode(CompletionListener listener, ListenerNode next)
+        {
+            this.listener = listener;
+            this.next = next;
+        }
+    }
+}
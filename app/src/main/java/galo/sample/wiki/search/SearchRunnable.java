@@ -1,9 +1,9 @@
 package galo.sample.wiki.search;
 
-import android.net.http.AndroidHttpClient;
 import android.os.Handler;
-import android.util.Log;
+import android.os.SystemClock;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
@@ -11,17 +11,24 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.protocol.HTTP;
 
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import galo.sample.wiki.api.ImageQueryResults;
 import galo.sample.wiki.api.ImageQueryResultsFactory;
+import galo.sample.wiki.api.Page;
 import galo.sample.wiki.api.WikiImageQuery;
+import galo.sample.wiki.net.HttpTransport;
+import galo.sample.wiki.net.ResilientRequestExecutor;
+import galo.sample.wiki.net.RetryPolicy;
 
 /**
  * Meant to be performed on a separate thread than the Main Looper Thread, runs the Wiki Api
- * query.  It is responsible for adding its process id to the process map, checking throughout its
- * processing to make sure it has not been cancelled (removed from the process map) and then, perform wikipedia internet search api call and jwhen
- * complete removes itself from the process map, finally checking one last time if had been canceled
+ * query.  It is responsible for moving its {@link SearchHandle} to running, checking throughout its
+ * processing to make sure it has not been cancelled and then, perform wikipedia internet search api call and when
+ * complete marks the handle as delivered, which fails if it has been cancelled in the meantime,
  * and then proceeding to call the SearchResultListener if not cancelled.
  *
  * Created by Galo on 2/27/2015.
@@ -29,51 +36,173 @@ import galo.sample.wiki.api.WikiImageQuery;
 class SearchRunnable implements Runnable
 {
     private SearchResultListener mListener;
-    private ProcessStateMap mPSMap;
+    private SearchHandle mHandle;
     private Handler mHandler;
     private WikiImageQuery mQuery;
+    private HttpTransport mTransport;
+    private ResilientRequestExecutor mRequestExecutor;
+    private QueryResultCache mResultCache;
+    private QueryResultDiskCache mDiskCache;
+    private long mFreshMillis;
+    private CancellationStats mCancellationStats;
+    private Executor mAbortExecutor;
+    private final ApiCall mCall;
+    private volatile long mCancelRequestedAt = -1;
 
-    SearchRunnable(SearchResultListener listener, ProcessStateMap psMap, Handler handler, WikiImageQuery query)
+    /**
+     *
+     * @param handle
+     * The handle of the search, whose cancellation aborts the request.
+     * @param requestExecutor
+     * Retries and hedges the request to the API, see {@link ResilientRequestExecutor}.
+     * @param resultCache
+     * The in-memory cache filled with the results.
+     * @param diskCache
+     * The on-disk cache that is looked into before going to the network, and is then filled with the
+     * results.
+     * @param freshMillis
+     * For how long results on disk are used as is, without asking the network whether they have changed.
+     * @param cancellationStats
+     * Where the time between {@link #abort()} and this search letting go of its thread and connection
+     * is recorded.
+     * @param abortExecutor
+     * The executor the http requests are aborted on, since closing their sockets is socket io that
+     * must not happen on the Main Looper thread a search is usually cancelled from.
+     */
+    SearchRunnable(SearchResultListener listener, SearchHandle handle, Handler handler
+            , HttpTransport transport, ResilientRequestExecutor requestExecutor, QueryResultCache resultCache, QueryResultDiskCache diskCache
+            , long freshMillis, CancellationStats cancellationStats, Executor abortExecutor, WikiImageQuery query)
     {
         // handle all failure cases for a null object here to quickly inform the developer of wrongdoing.
         if(listener == null)
             throw new NullPointerException("The listener must not be null.");
-        if(psMap == null)
-            throw new NullPointerException("The input process state map cannot be null.");
+        if(handle == null)
+            throw new NullPointerException("The search handle cannot be null.");
         if(handler == null)
             throw new NullPointerException("The handler process cannot be null.");
+        if(transport == null)
+            throw new NullPointerException("The http transport cannot be null.");
+        if(requestExecutor == null)
+            throw new NullPointerException("The request executor cannot be null.");
+        if(resultCache == null)
+            throw new NullPointerException("The result cache cannot be null.");
+        if(diskCache == null)
+            throw new NullPointerException("The disk cache cannot be null.");
+        if(cancellationStats == null)
+            throw new NullPointerException("The cancellation stats cannot be null.");
+        if(abortExecutor == null)
+            throw new NullPointerException("The abort executor cannot be null.");
         if(query == null)
             throw new NullPointerException("The query cannot be null.");
         mListener = listener;
-        mPSMap = psMap;
+        mHandle = handle;
         mHandler = handler;
+        mTransport = transport;
+        mRequestExecutor = requestExecutor;
+        mResultCache = resultCache;
+        mDiskCache = diskCache;
+        mFreshMillis = freshMillis;
+        mCancellationStats = cancellationStats;
+        mAbortExecutor = abortExecutor;
         mQuery = query;
-        mPSMap.addProcess(mQuery.getRequestId());
+        // created up front so that it can be aborted at any time, even before it is executed.
+        mCall = new ApiCall();
+        mHandle.addCompletionListener(new SearchHandle.CompletionListener()
+        {
+            @Override
+            public void onSearchCompleted(SearchHandle handle)
+            {
+                if(handle.isCancelled())
+                    abort();
+            }
+        });
+    }
+
+    /**
+     * Aborts the http requests, closing their sockets, so that a search thread blocked waiting for or
+     * reading the response, or waiting to retry, is released right away rather than downloading a
+     * response nobody wants anymore.  Called once the handle has been cancelled, from whichever thread
+     * cancelled it, which only hands the aborting to the abort executor.
+     */
+    void abort()
+    {
+        if(mCancelRequestedAt < 0)
+            mCancelRequestedAt = SystemClock.elapsedRealtime();
+        Runnable cancelCall = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mCall.cancel();
+            }
+        };
+        try
+        {
+            mAbortExecutor.execute(cancelCall);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // the search still notices its handle was cancelled, only later.
+            e.printStackTrace();
+        }
     }
 
     @Override
     public void run()
+    {
+        try
+        {
+            performSearch();
+        }
+        finally
+        {
+            long cancelRequestedAt = mCancelRequestedAt;
+            if(cancelRequestedAt >= 0)
+                mCancellationStats.record(SystemClock.elapsedRealtime() - cancelRequestedAt);
+        }
+    }
+
+    private boolean isCancelled()
+    {
+        return mHandle.isCancelled();
+    }
+
+    private void performSearch()
     {
         // check cancelled
-        if(!mPSMap.contains(mQuery.getRequestId()))
+        if(!mHandle.markRunning())
             return;
 
-        // create the request
-        HttpPost postRequest = new HttpPost(mQuery.getHostAddress());
-        AndroidHttpClient httpClient = AndroidHttpClient.newInstance("Android");
-        Scanner inScanner = null;
-        String jsonString = null;
+        // stale-while-revalidate: show what is on disk right away, then check it against the network.
+        // only first batches are cached, a later batch is worthless without the ones before it.
+        final boolean bCacheable = !mQuery.isContinuation();
+        final String cacheKey = QueryResultCache.createKey(mQuery);
+        QueryResultDiskCache.CachedResults diskResults = bCacheable ? mDiskCache.get(cacheKey, mQuery.getRequestId()) : null;
+        if(diskResults != null)
+        {
+            if(diskResults.getAgeMillis() < mFreshMillis)
+            {
+                mResultCache.put(cacheKey, diskResults.results);
+                postResults(diskResults.results, true);
+                return;
+            }
+            // provisional, so that the listener waits for the revalidated results before treating them
+            // as the search's.
+            postResults(diskResults.results.asProvisional(), false);
+        }
+
+        HttpEntity responseEntity = null;
+        InputStream inStream = null;
+        ImageQueryResults parsedResults = null;
         final ImageQueryError queryError = new ImageQueryError();
         try
         {
-            HttpEntity queryEntity = new StringEntity(mQuery.generateEncodedEntityString(), HTTP.UTF_8);
-            postRequest.setEntity(queryEntity);
-
-            // execute and wait for response.
-            HttpResponse httpResponse = httpClient.execute(postRequest);
+            // execute and wait for response, retrying transient failures.
+            HttpResponse httpResponse = mRequestExecutor.execute(mCall);
+            responseEntity = httpResponse.getEntity();
 
             // check if cancelled while waiting for response.
-            if(!mPSMap.contains(mQuery.getRequestId()))
+            if(!mHandle.isActive())
                 return;
 
             // handle network error code, non error is 200 ok
@@ -83,26 +212,43 @@ class SearchRunnable implements Runnable
                 queryError.status = statusLine;
                 throw new IllegalStateException("Received error code from response.");
             }
+            // still lagging once out of retries.
+            if(isMaxLagged(httpResponse))
+            {
+                queryError.status = statusLine;
+                throw new IllegalStateException("The API is lagging behind.");
+            }
 
-            // read json string
-            inScanner = new Scanner(httpResponse.getEntity().getContent());
-            StringBuilder sb = new StringBuilder();
-            while(inScanner.hasNextLine())
-                sb.append(inScanner.nextLine());
-
-            jsonString = sb.toString();
-            Log.d("json",jsonString);
+            // parse the pages straight off the stream as they come in.
+            inStream = responseEntity.getContent();
+            parsedResults = ImageQueryResultsFactory.parseJSONStream(inStream, mQuery.getRequestId(), createPageParsedListener());
         }
         catch (Exception e)
         {
-            e.printStackTrace();
-            queryError.msg = e.getMessage();
+            // an aborted request fails with an exception, which is expected.
+            if(!isCancelled())
+                e.printStackTrace();
+            queryError.msg = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
         }
         finally
         {
-            if(inScanner != null)
-                inScanner.close();
-            httpClient.close();
+            // once cancelled there is no point reading the rest of the response just to keep the
+            // connection, closing it is quicker.
+            if(isCancelled())
+                mCall.cancel();
+            if(inStream != null)
+            {
+                try {
+                    inStream.close();
+                } catch (IOException e) {/*do nothing*/}
+            }
+            // hand the connection back to the shared pool, even when the content was never read.
+            if(responseEntity != null && !mCall.isCancelled())
+            {
+                try {
+                    responseEntity.consumeContent();
+                } catch (IOException e) {/*do nothing*/}
+            }
         }
 
         if(queryError.msg != null)
@@ -112,7 +258,7 @@ class SearchRunnable implements Runnable
                 @Override
                 public void run()
                 {
-                    if(mPSMap.removeProcess(mQuery.getRequestId()))
+                    if(mHandle.markDelivered())
                     {
                         queryError.requestId = mQuery.getRequestId();
                         mListener.onRemoteSearchError(queryError);
@@ -122,17 +268,125 @@ class SearchRunnable implements Runnable
         }
         else
         {
-            final ImageQueryResults results = ImageQueryResultsFactory.parseJSON(jsonString);
-            mHandler.post(new Runnable()
+            // cache even if cancelled by now, the user is likely to come back to this term.
+            if(bCacheable)
+            {
+                mResultCache.put(cacheKey, parsedResults);
+                mDiskCache.put(cacheKey, parsedResults);
+            }
+
+            // also when the results on disk turned out to be up to date, the listener then keeps the
+            // pages it shows as they are, but knows they are final.
+            postResults(parsedResults, true);
+        }
+    }
+
+    /**
+     * @return
+     * True if the API refused the query because its database replicas lag behind, see
+     * {@link WikiImageQuery#MAXLAG_SECONDS}.
+     */
+    private static boolean isMaxLagged(HttpResponse response)
+    {
+        Header errorHeader = response.getFirstHeader(WikiImageQuery.API_ERROR_HEADER);
+        return errorHeader != null && WikiImageQuery.MAXLAG_ERROR.equals(errorHeader.getValue());
+    }
+
+    /**
+     * @param results
+     * The results to give to the listener on the handler thread.
+     * @param bFinal
+     * True if these are the last results for this search, which concludes it.  False if
+     * newer results may follow.
+     */
+    private void postResults(final ImageQueryResults results, final boolean bFinal)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // last check for process cancellation before committing to the callback.
+                boolean bActive = bFinal ? mHandle.markDelivered() : mHandle.isActive();
+                if(bActive)
+                    mListener.onSearchResultReceived(results);
+            }
+        });
+    }
+
+    /**
+     * @return
+     * A listener forwarding each parsed page to the {@link StreamingSearchResultListener}, as long as
+     * this search has not been cancelled, or null if the listener is not interested in single pages.
+     * Pages of a later batch are not forwarded, since they are only indexed once appended to the
+     * earlier ones.
+     */
+    private ImageQueryResultsFactory.PageParsedListener createPageParsedListener()
+    {
+        if(!(mListener instanceof StreamingSearchResultListener) || mQuery.isContinuation())
+            return null;
+        final StreamingSearchResultListener streamingListener = (StreamingSearchResultListener) mListener;
+        return new ImageQueryResultsFactory.PageParsedListener()
+        {
+            @Override
+            public void onPageParsed(Page page)
+            {
+                if(mHandle.isActive())
+                    streamingListener.onPageParsed(mQuery.getRequestId(), page);
+            }
+        };
+    }
+
+    /**
+     * The query to the API, posted anew for every attempt.  Server errors, throttling and replica lag
+     * are retried, after the wait asked for in {@code Retry-After}, if any.
+     */
+    private class ApiCall extends ResilientRequestExecutor.Call<HttpResponse>
+    {
+        @Override
+        protected ResilientRequestExecutor.Attempt<HttpResponse> newAttempt() throws IOException
+        {
+            final HttpPost postRequest = new HttpPost(mQuery.getHostAddress());
+            postRequest.setEntity(new StringEntity(mQuery.generateEncodedEntityString(), HTTP.UTF_8));
+            return new ResilientRequestExecutor.Attempt<HttpResponse>()
             {
                 @Override
-                public void run()
+                public HttpResponse execute() throws IOException
                 {
-                    // last check for process cancellation before committing to the callback.
-                    if (mPSMap.removeProcess(mQuery.getRequestId()))
-                        mListener.onSearchResultReceived(results);
+                    return mTransport.execute(postRequest);
                 }
-            });
+
+                @Override
+                public void abort()
+                {
+                    postRequest.abort();
+                }
+            };
+        }
+
+        @Override
+        protected boolean isRetryable(HttpResponse response)
+        {
+            return RetryPolicy.isRetryableStatus(response.getStatusLine().getStatusCode()) || isMaxLagged(response);
+        }
+
+        @Override
+        protected long getRetryAfterMillis(HttpResponse response)
+        {
+            Header retryAfter = response.getFirstHeader(RetryPolicy.RETRY_AFTER_HEADER);
+            return retryAfter == null ? -1 : RetryPolicy.parseRetryAfterMillis(retryAfter.getValue());
+        }
+
+        @Override
+        protected void discard(HttpResponse response)
+        {
+            HttpEntity entity = response.getEntity();
+            if(entity != null)
+            {
+                try {
+                    entity.consumeContent();
+                } catch (IOException e) {/*do nothing*/}
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,24 @@
+package galo.sample.wiki.search;
+
+import galo.sample.wiki.api.Page;
+
+/**
+ * A {@link SearchResultListener} that also wants to hear about every page while the response is still
+ * being received and parsed, for example to start fetching a page's thumbnail before the rest of the
+ * results have arrived.
+ */
+public interface StreamingSearchResultListener extends SearchResultListener
+{
+    /**
+     * Called on the searching thread, NOT the handler thread, as soon as a page has been parsed.  The
+     * same page instance will later be part of the results given to
+     * {@link #onSearchResultReceived(galo.sample.wiki.api.ImageQueryResults)}, unless the search is
+     * cancelled or fails in the meantime.
+     *
+     * @param requestId
+     * The request id of the search the page belongs to.
+     * @param page
+     * The parsed page.
+     */
+    public void onPageParsed(String requestId, Page page);
+}
@@ -0,0 +1,304 @@
+package galo.sample.wiki.search;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import galo.sample.wiki.concurrent.PriorityDispatcher;
+import galo.sample.wiki.concurrent.Viewport;
+
+/**
+ * Runs thumbnail downloads on a long-lived pool of threads, in viewport order, see
+ * {@link PriorityDispatcher}.  Every search displayed starts a new generation of downloads.  Starting a
+ * generation never shuts down, interrupts or waits for the threads, so it is cheap enough for the Main
+ * Looper thread.
+ *
+ * Downloads are jobs shared by key, the thumbnail's url, and referenced by the generations that need
+ * them.  A new generation attaches to the jobs of an earlier one, pending or already running, rather
+ * than starting its own, which is what happens as a term is refined and most pages stay the same.
+ * Starting a generation lets go of the earlier generations' references, but a job is only cancelled,
+ * interrupting its download if running, by {@link #cancelUnreferenced()}, once the new generation has
+ * attached to the jobs it needs.  A cancelled job stays shared until its thread is done with it, so
+ * that a generation needing it again, such as when a refined term is taken back, attaches to it and
+ * has it run again rather than getting the result of its cancellation.
+ *
+ * This is thread-safe.
+ */
+class ThumbnailDownloadScheduler
+{
+    private static final int PENDING = 0,
+                             RUNNING = 1,
+                             DONE = 2,
+                             CANCELLED = 3;
+
+    private final PriorityDispatcher mDispatcher;
+    private final Executor mDeliveryExecutor;
+    // guarded by this.
+    private final Map<String, Job> mJobs = new HashMap<String, Job>();
+    private long mGeneration;
+    private long mDroppedCount,
+                 mCancelledCount,
+                 mReusedCount;
+
+    /**
+     * Receives the file a download job ended with.
+     */
+    interface DownloadCallback
+    {
+        /**
+         * Called on a thread of the delivery executor.
+         *
+         * @param file
+         * The downloaded file, or null if the download failed.
+         */
+        void onDownloadComplete(File file);
+    }
+
+    /**
+     *
+     * @param executor
+     * The executor the downloads run on.
+     * @param maxConcurrent
+     * The maximum number of downloads running at the same time.
+     * @param deliveryExecutor
+     * The executor the callbacks are called on, so that a download thread goes on with the next
+     * download right away.
+     * @param viewport
+     * The viewport ranking the downloads.
+     */
+    ThumbnailDownloadScheduler(Executor executor, int maxConcurrent, Executor deliveryExecutor, Viewport viewport)
+    {
+        if(deliveryExecutor == null)
+            throw new NullPointerException("The delivery executor cannot be null.");
+        mDeliveryExecutor = deliveryExecutor;
+        mDispatcher = new PriorityDispatcher(executor, maxConcurrent, viewport);
+    }
+
+    /**
+     * Starts a new generation, letting go of the references of earlier ones: their callbacks are no
+     * longer called.  Jobs are left as they are until {@link #cancelUnreferenced()}, so that the new
+     * generation can attach to them.  Never blocks.
+     *
+     * @return
+     * The new generation, to submit its downloads with.
+     */
+    synchronized long startGeneration()
+    {
+        for(Job job : mJobs.values())
+            job.callbacks.clear();
+        return ++mGeneration;
+    }
+
+    /**
+     * Cancels the jobs no generation references anymore, interrupting those running.  Called once the
+     * current generation has attached to the jobs it needs, usually when its page set is displayed.
+     */
+    synchronized void cancelUnreferenced()
+    {
+        Iterator<Job> iterator = mJobs.values().iterator();
+        while(iterator.hasNext())
+        {
+            Job job = iterator.next();
+            if(!job.callbacks.isEmpty() || job.state == CANCELLED)
+                continue;
+            if(job.state == RUNNING)
+            {
+                job.thread.interrupt();
+                mCancelledCount++;
+                // left in place until its thread is done with it, see Job.run().
+                job.state = CANCELLED;
+                continue;
+            }
+            mDroppedCount++;
+            job.state = CANCELLED;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Attaches the generation to the download job of the key, queuing a new job if there is none.
+     *
+     * @param generation
+     * The generation the download is for, ignored if it is no longer the latest one.
+     * @param key
+     * Identifies the download, jobs of the same key are shared.
+     * @param pageIndex
+     * The index of the page whose thumbnail is downloaded, which decides its rank.
+     * @param download
+     * Performs the download, only called if no job of the key is pending or running.
+     * @param callback
+     * Called once the job completes, unless a newer generation has started by then.
+     */
+    void download(long generation, String key, int pageIndex, Callable<File> download, DownloadCallback callback)
+    {
+        Job job;
+        boolean bQueue;
+        synchronized (this)
+        {
+            if(generation != mGeneration)
+                return;
+            job = mJobs.get(key);
+            if(job == null)
+            {
+                job = new Job(key, download);
+                mJobs.put(key, job);
+                bQueue = true;
+            }
+            else
+            {
+                if(job.generation != generation)
+                    mReusedCount++;
+                // a pending job moved to another index is queued again to be ranked by it, whichever
+                // copy runs first runs the job.  A cancelled job still running runs again once done,
+                // unless it completed anyway.
+                bQueue = job.state == PENDING && job.pageIndex != pageIndex;
+            }
+            job.generation = generation;
+            job.pageIndex = pageIndex;
+            job.callbacks.add(callback);
+        }
+        if(bQueue)
+            mDispatcher.execute(pageIndex, job);
+    }
+
+    /**
+     * @param viewport
+     * The viewport ranking the downloads from now on.
+     */
+    void setViewport(Viewport viewport)
+    {
+        mDispatcher.setViewport(viewport);
+    }
+
+    /**
+     * @return
+     * The number of downloads dropped before they started, because no generation needed them anymore.
+     */
+    synchronized long getDroppedCount()
+    {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return
+     * The number of downloads interrupted, because no generation needed them anymore.
+     */
+    synchronized long getCancelledCount()
+    {
+        return mCancelledCount;
+    }
+
+    /**
+     * @return
+     * The number of times a generation attached to the job of an earlier one instead of downloading
+     * again.
+     */
+    synchronized long getReusedCount()
+    {
+        return mReusedCount;
+    }
+
+    private class Job implements Runnable
+    {
+        final String key;
+        final Callable<File> download;
+        // guarded by the scheduler.
+        final List<DownloadCallback> callbacks = new ArrayList<DownloadCallback>();
+        long generation;
+        int pageIndex;
+        int state = PENDING;
+        Thread thread;
+
+        Job(String key, Callable<File> download)
+        {
+            this.key = key;
+            this.download = download;
+        }
+
+        @Override
+        public void run()
+        {
+            synchronized (ThumbnailDownloadScheduler.this)
+            {
+                if(state != PENDING)
+                    return;
+                if(callbacks.isEmpty())
+                {
+                    // let go of by a newer generation before it got a thread.
+                    state = CANCELLED;
+                    mJobs.remove(key);
+                    mDroppedCount++;
+                    return;
+                }
+                state = RUNNING;
+                thread = Thread.currentThread();
+            }
+
+            File file = null;
+            try
+            {
+                file = download.call();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+
+            final List<DownloadCallback> completedCallbacks;
+            boolean bRequeue = false;
+            synchronized (ThumbnailDownloadScheduler.this)
+            {
+                thread = null;
+                // an interrupt was only meant for this job, the thread goes on with the next one.
+                Thread.interrupted();
+                if(state == CANCELLED && file == null && !callbacks.isEmpty())
+                {
+                    // attached to again after being cancelled, its result is that of the cancellation
+                    // rather than of the download, so it runs again for the generations now needing it.
+                    state = PENDING;
+                    bRequeue = true;
+                    completedCallbacks = null;
+                }
+                else
+                {
+                    state = DONE;
+                    if(mJobs.get(key) == this)
+                        mJobs.remove(key);
+                    completedCallbacks = new ArrayList<DownloadCallback>(callbacks);
+                    callbacks.clear();
+                }
+            }
+            if(bRequeue)
+            {
+                mDispatcher.execute(pageIndex, this);
+                return;
+            }
+            if(completedCallbacks.isEmpty())
+                return;
+            final File completedFile = file;
+            Runnable delivery = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for(DownloadCallback callback : completedCallbacks)
+                        callback.onDownloadComplete(completedFile);
+                }
+            };
+            try
+            {
+                mDeliveryExecutor.execute(delivery);
+            }
+            catch (RejectedExecutionException e)
+            {
+                delivery.run();
+            }
+        }
+    }
+}
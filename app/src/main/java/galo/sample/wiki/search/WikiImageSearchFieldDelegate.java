@@ -9,23 +9,26 @@ import android.net.NetworkInfo;
 import android.os.Handler;
 import android.text.Editable;
 import android.text.TextWatcher;
-import android.util.Log;
 import android.widget.EditText;
 import android.widget.Toast;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
 import galo.sample.wiki.R;
 import galo.sample.wiki.api.ImageQueryResults;
 import galo.sample.wiki.api.Page;
+import galo.sample.wiki.concurrent.ExecutorRegistry;
+import galo.sample.wiki.concurrent.Viewport;
 import galo.sample.wiki.image.RemoteImageCache;
+import galo.sample.wiki.net.AdaptiveConcurrencyLimiter;
 import galo.sample.wiki.util.DeviceInfoUtil;
 
 /**
@@ -38,43 +41,51 @@ import galo.sample.wiki.util.DeviceInfoUtil;
  *
  * Created by Galo on 2/27/2015.
  */
-public class WikiImageSearchFieldDelegate implements SearchResultListener
+public class WikiImageSearchFieldDelegate implements StreamingSearchResultListener
 {
 
-    private static final String EMPTY_STRING = "";
-    private static final int MAX_IMG_COUNT = 50;
+    // the first batch is kept small so it comes back quickly, more are loaded as the user scrolls.
+    private static final int FIRST_BATCH_IMG_COUNT = 20;
+    private static final int NEXT_BATCH_IMG_COUNT = 50;
     private static final int MAX_IMG_SIZE = 96;
 
-    private static final long DEFAULT_SEARCH_DELAY = 500;
-
     private EditText mSearchField;
     private WikiPageSearchController mSearchManager;
     private RemoteImageCache mImageCache;
     private ImageSearchResultListener mImageSearchResultListener;
     private Handler mHandler;
+    private AdaptiveSearchScheduler mSearchScheduler;
     private TextWatcher mTextWatcher;
     private BroadcastReceiver mNetworkChangeReceiver;
     private boolean mIsDetached;
 
-    private ThreadFactory mRemoteCacheExecutorThreadFactory;
-    private ExecutorService mRemoteCacheExecutor;
+    private ThumbnailDownloadScheduler mDownloadScheduler;
+    private DownloadGeneration mDownloadGeneration;
+    private final Object mDownloadGenerationLock = new Object();
 
-    private volatile String mCurrentSearchId = "";
+    private volatile SearchHandle mCurrentSearch;
+    // only accessed on the handler thread.
+    private String mCurrentSearchText;
+    private SearchHandle mLoadMoreSearch;
+    private ImageQueryResults mDisplayedResults;
+    private String mDisplayedSearchId = "";
+    // the displayed pages by page id, which images resolved for any page set of the search go to.
+    private Map<Integer, Page> mDisplayedPages = new HashMap<Integer, Page>();
 
     public WikiImageSearchFieldDelegate(EditText searchField, ImageSearchResultListener listener)
     {
         mSearchField = searchField;
         mImageSearchResultListener = listener;
-        mSearchManager = new WikiPageSearchController(MAX_IMG_SIZE, MAX_IMG_COUNT);
+        mSearchManager = new WikiPageSearchController(searchField.getContext(), MAX_IMG_SIZE, FIRST_BATCH_IMG_COUNT);
         mImageCache = new RemoteImageCache(searchField.getContext());
         mHandler = new Handler();
-        mRemoteCacheExecutorThreadFactory = new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable r) {
-                return new Thread(r, "UrlFileLoaderThread");
-            }
-        };
-        mRemoteCacheExecutor = null;
+        mSearchScheduler = new AdaptiveSearchScheduler(mHandler);
+        // downloads are network bound, the host's adaptive limiter decides how many actually run,
+        // they may take just enough of the process' network threads for it to reach its maximum.
+        mDownloadScheduler = new ThumbnailDownloadScheduler(ExecutorRegistry.getExecutor(searchField.getContext(), ExecutorRegistry.Role.NETWORK_IO)
+                , AdaptiveConcurrencyLimiter.DEFAULT_MAX_LIMIT, ExecutorRegistry.getExecutor(searchField.getContext(), ExecutorRegistry.Role.DELIVERY)
+                , new Viewport());
+        mDownloadGeneration = null;
         registerConnectivityReceiver();
         registerSearchFieldTextWatcher();
     }
@@ -82,9 +93,6 @@ public class WikiImageSearchFieldDelegate implements SearchResultListener
     private void registerSearchFieldTextWatcher()
     {
         mSearchField.addTextChangedListener(mTextWatcher = new TextWatcher() {
-            Timer mExecuteSearchTimer = new Timer("SearchExecutionTimer");
-            TimerTask mSearchTask;
-
             @Override
             public void beforeTextChanged(CharSequence s, int start, int count, int after) {
                 // do nothing
@@ -93,30 +101,30 @@ public class WikiImageSearchFieldDelegate implements SearchResultListener
             @Override
             public void onTextChanged(final CharSequence s, int start, int before, int count) {
                 // cancel any preceding operations scheduled
-                mSearchManager.cancel(mCurrentSearchId);
-                if (mSearchTask != null)
-                    mSearchTask.cancel();
-                // cancel callbacks for that last request, assuming that request ids are never the EMPTY_STRING
-                mCurrentSearchId = EMPTY_STRING;
+                mSearchManager.cancel(mCurrentSearch);
+                mSearchScheduler.cancel();
+                cancelLoadMore();
+                // cancel callbacks for that last request
+                mCurrentSearch = null;
                 if (!s.toString().isEmpty())
                 {
-                    // schedule Wiki Api search, giving time to the user to enter more text before commiting to the search.
-                    mSearchTask = new TimerTask() {
+                    final String searchText = s.toString();
+                    // let the scheduler decide, from the typing speed and network latency, when to
+                    // commit to the search.
+                    mSearchScheduler.setRoundTripMillis(mSearchManager.getAverageRoundTripMillis());
+                    mSearchScheduler.onInput(new Runnable() {
                         @Override
                         public void run() {
                             if (DeviceInfoUtil.checkInternetConnectivity(mSearchField.getContext()))
-                                mCurrentSearchId = mSearchManager.searchAsync(s.toString(), WikiImageSearchFieldDelegate.this);
+                            {
+                                mCurrentSearchText = searchText;
+                                mCurrentSearch = mSearchManager.searchAsync(searchText, WikiImageSearchFieldDelegate.this);
+                            }
                             else
-                                mHandler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        Toast.makeText(mSearchField.getContext().getApplicationContext()
-                                                , "Unable to connect to network.", Toast.LENGTH_SHORT).show();
-                                    }
-                                });
+                                Toast.makeText(mSearchField.getContext().getApplicationContext()
+                                        , "Unable to connect to network.", Toast.LENGTH_SHORT).show();
                         }
-                    };
-                    mExecuteSearchTimer.schedule(mSearchTask, DEFAULT_SEARCH_DELAY);
+                    });
                 }
             }
 
@@ -125,17 +133,6 @@ public class WikiImageSearchFieldDelegate implements SearchResultListener
             {
                 // do nothing here.
             }
-
-            @Override
-            protected void finalize() throws Throwable
-            {
-                super.finalize();
-                if (mExecuteSearchTimer != null) {
-                    mExecuteSearchTimer.cancel();
-                    mExecuteSearchTimer.purge();
-                    mExecuteSearchTimer = null;
-                }
-            }
         });
     }
 
@@ -161,65 +158,248 @@ public class WikiImageSearchFieldDelegate implements SearchResultListener
         },new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
+    /**
+     * @return
+     * True if the request id belongs to the latest search, whose results and images are wanted.
+     */
+    private boolean isCurrentSearch(String requestId)
+    {
+        SearchHandle currentSearch = mCurrentSearch;
+        return currentSearch != null && currentSearch.getRequestId().equals(requestId);
+    }
+
     @Override
-    public void onSearchResultReceived(ImageQueryResults results)
+    public void onPageParsed(String requestId, final Page page)
     {
-        final String requestId = results.getRequestId();
-        if(mCurrentSearchId.equals(requestId))
+        if(!isCurrentSearch(requestId))
+            return;
+        final DownloadGeneration generation = getDownloadGeneration(requestId);
+        // a thumbnail the in-memory index knows of is handed over as is, without a trip through the
+        // download threads and the disk.
+        final File cachedFile = page.getThumbNail() != null ? mImageCache.findCachedFileForPage(page) : null;
+        if(cachedFile == null)
+        {
+            // start fetching the thumbnail right away instead of waiting for the whole response.
+            submitDownload(generation, page);
+            return;
+        }
+        if(!generation.submittedPages.add(page.getPageId()))
+            return;
+        mHandler.post(new Runnable()
         {
-            if(mRemoteCacheExecutor != null)
+            @Override
+            public void run()
             {
-                mRemoteCacheExecutor.shutdownNow();
-                try
-                {
-                    mRemoteCacheExecutor.awaitTermination(200, TimeUnit.MILLISECONDS);
-                }
-                catch (InterruptedException e)
-                {
-                    Log.w(WikiImageSearchFieldDelegate.class.getSimpleName(), "Executor interrupted", e);
-                }
+                deliverImage(generation, page, cachedFile);
             }
-            mRemoteCacheExecutor = Executors.newFixedThreadPool(DeviceInfoUtil.getNumberOrAvailableVMProcessors()*2, mRemoteCacheExecutorThreadFactory);
+        });
+    }
+
+    /**
+     * Sets the viewport of the grid displaying the pages, so that the thumbnails the user sees are
+     * downloaded first.
+     *
+     * @param viewport
+     * The viewport, kept up to date by the grid.
+     */
+    public void setViewport(Viewport viewport)
+    {
+        mDownloadScheduler.setViewport(viewport);
+    }
+
+    /**
+     * Loads the next batch of pages of the displayed results, if there are more and a batch is not
+     * already on its way.  The pages are appended through
+     * {@link ImageSearchResultListener#onPagesAppended(ImageQueryResults, List)}.  Must be called on the
+     * handler thread, usually as the user scrolls near the end of the displayed pages.  Nothing is
+     * loaded while the displayed pages are provisional, since the actual results may differ.
+     */
+    public void loadMore()
+    {
+        if(mIsDetached || mLoadMoreSearch != null || mDisplayedResults == null || mDisplayedResults.isProvisional()
+                || !mDisplayedResults.hasMorePages() || !isCurrentSearch(mDisplayedSearchId))
+            return;
+        mLoadMoreSearch = mSearchManager.searchMoreAsync(mCurrentSearchText, mDisplayedResults
+                , NEXT_BATCH_IMG_COUNT, this);
+    }
+
+    private void cancelLoadMore()
+    {
+        mSearchManager.cancel(mLoadMoreSearch);
+        mLoadMoreSearch = null;
+    }
+
+    private boolean isLoadMoreSearch(String requestId)
+    {
+        return mLoadMoreSearch != null && mLoadMoreSearch.getRequestId().equals(requestId);
+    }
+
+    @Override
+    public void onSearchResultReceived(ImageQueryResults results)
+    {
+        final String requestId = results.getRequestId();
+        if(isLoadMoreSearch(requestId))
+            onMorePagesReceived(results);
+        else if(isCurrentSearch(requestId))
+        {
+            // a batch continuing the previous pages no longer fits the new ones.
+            cancelLoadMore();
+            DownloadGeneration generation = getDownloadGeneration(requestId);
+            // the final results of a search whose provisional pages turned out right are kept on
+            // screen as they are, along with their images.
+            boolean bSameDisplayed = requestId.equals(mDisplayedSearchId) && results.hasSamePages(mDisplayedResults);
+            mDisplayedSearchId = requestId;
+            mDisplayedResults = results;
+            if(bSameDisplayed)
+                return;
             ImageSearchResultListener listener = mImageSearchResultListener;
             if(listener != null)
                 listener.onNewPageSet(results);
-            // load the images
+            mDisplayedPages = new HashMap<Integer, Page>();
+
+            // hand over the images already resolved for the search, including those of a provisional
+            // page set this one replaces, and load the rest.
+            loadImages(generation, results.getPages());
+            // only now is it known which downloads of earlier searches are not needed anymore.
+            mDownloadScheduler.cancelUnreferenced();
+        }
+    }
 
-            List<Page> pages = results.getPages();
-            for(final Page p : pages) {
-                mRemoteCacheExecutor.execute(new Runnable()
+    /**
+     * Appends the next batch to the displayed pages and loads their images along with the rest of the
+     * current search.
+     */
+    private void onMorePagesReceived(ImageQueryResults nextBatch)
+    {
+        mLoadMoreSearch = null;
+        ImageQueryResults results = mDisplayedResults.append(nextBatch);
+        List<Page> appendedPages = results.getPages().subList(mDisplayedResults.getPages().size()
+                , results.getPages().size());
+        mDisplayedResults = results;
+
+        ImageSearchResultListener listener = mImageSearchResultListener;
+        if(listener != null)
+            listener.onPagesAppended(results, appendedPages);
+        loadImages(getDownloadGeneration(mDisplayedSearchId), appendedPages);
+    }
+
+    /**
+     * Must be called on the handler thread.  Displays the pages, handing over the images already
+     * resolved for the search and those already cached, found all at once through the cache's
+     * in-memory index, and only sends the rest to the download threads.
+     */
+    private void loadImages(DownloadGeneration generation, List<Page> pages)
+    {
+        for(Page p : pages)
+            mDisplayedPages.put(p.getPageId(), p);
+        File[] cachedFiles = mImageCache.findCachedFilesForPages(pages);
+        for(int i = 0; i < cachedFiles.length; i++)
+        {
+            Page p = pages.get(i);
+            if(generation.resolvedImages.containsKey(p.getPageId()))
+                notifyImage(p, generation.resolvedImages.get(p.getPageId()));
+            else if(cachedFiles[i] == null && p.getThumbNail() != null)
+                submitDownload(generation, p);
+            else if(generation.submittedPages.add(p.getPageId()))
+                deliverImage(generation, p, cachedFiles[i]);
+        }
+    }
+
+    /**
+     * Retrieves the bookkeeping of downloads for the request, starting a new download generation, which
+     * lets go of the downloads of the previous request, if needed.  Never blocks on the download
+     * threads.  This can be called either from the searching thread or from the
+     * handler thread.
+     */
+    private DownloadGeneration getDownloadGeneration(String requestId)
+    {
+        synchronized (mDownloadGenerationLock)
+        {
+            if(mDownloadGeneration != null && mDownloadGeneration.requestId.equals(requestId))
+                return mDownloadGeneration;
+            mDownloadGeneration = new DownloadGeneration(requestId, mDownloadScheduler.startGeneration());
+            return mDownloadGeneration;
+        }
+    }
+
+    /**
+     * Attaches the page to the download job of its thumbnail, which may already be pending or running
+     * on behalf of an earlier search with the same thumbnail.
+     */
+    private void submitDownload(DownloadGeneration generation, final Page p)
+    {
+        final DownloadGeneration requestGeneration = generation;
+        if(!generation.submittedPages.add(p.getPageId()))
+            return;
+        ThumbnailDownloadScheduler.DownloadCallback callback = new ThumbnailDownloadScheduler.DownloadCallback()
+        {
+            @Override
+            public void onDownloadComplete(final File imgFile)
+            {
+                mHandler.post(new Runnable()
                 {
                     @Override
                     public void run()
                     {
-                        final File imgFile = mImageCache.getLocalCacheFileForPage(p);
-                        if(!Thread.currentThread().isInterrupted())
-                        {
-                            mHandler.post(new Runnable()
-                            {
-                                @Override
-                                public void run()
-                                {
-                                    // final check before sending
-                                    if (mCurrentSearchId.equals(requestId))
-                                    {
-                                        ImageSearchResultListener listener = mImageSearchResultListener;
-                                        if(listener != null)
-                                        {
-                                            // fork based on whether imgFile exists.
-                                            if (imgFile != null)
-                                                listener.onImageFound(p, imgFile);
-                                            else
-                                                listener.onImageNotFound(p);
-                                        }
-                                    }
-
-                                } // end run() on handler thread.
-                            });
-                        }
-                    }// end run
+                        deliverImage(requestGeneration, p, imgFile);
+                    } // end run() on handler thread.
                 });
-            } // end for-loop
+            }
+        };
+        if(p.getThumbNail() == null)
+        {
+            callback.onDownloadComplete(null);
+            return;
+        }
+        try
+        {
+            // visible thumbnails first, then those about to be scrolled into view.
+            mDownloadScheduler.download(generation.id, p.getThumbNail().getSource(), p.getIndex(), new Callable<File>()
+            {
+                @Override
+                public File call()
+                {
+                    return mImageCache.getLocalCacheFileForPage(p);
+                }
+            }, callback);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // the download threads could not be started, the image is simply not shown.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Must be called on the handler thread.  Records the image as resolved for the search and hands it
+     * to the displayed page of the same id, if any.  Images of pages not displayed yet are handed over
+     * once a page set of the search displays them, since the listener cannot place an image before it
+     * knows about the page set, and a page of a provisional page set may have another index in the
+     * final one.
+     */
+    private void deliverImage(DownloadGeneration generation, Page p, File imgFile)
+    {
+        // final check before sending
+        if (!isCurrentSearch(generation.requestId))
+            return;
+        generation.resolvedImages.put(p.getPageId(), imgFile);
+        if(!generation.requestId.equals(mDisplayedSearchId))
+            return;
+        Page displayedPage = mDisplayedPages.get(p.getPageId());
+        if(displayedPage != null)
+            notifyImage(displayedPage, imgFile);
+    }
+
+    private void notifyImage(Page p, File imgFile)
+    {
+        ImageSearchResultListener listener = mImageSearchResultListener;
+        if(listener != null)
+        {
+            // fork based on whether imgFile exists.
+            if (imgFile != null)
+                listener.onImageFound(p, imgFile);
+            else
+                listener.onImageNotFound(p);
         }
     }
 
@@ -231,17 +411,51 @@ public class WikiImageSearchFieldDelegate implements SearchResultListener
         if(!mIsDetached)
         {
             mImageSearchResultListener = null;
-            mCurrentSearchId = EMPTY_STRING;
+            mCurrentSearch = null;
+            mLoadMoreSearch = null;
             if (mTextWatcher != null)
                 mSearchField.removeTextChangedListener(mTextWatcher);
             mSearchField.getContext().unregisterReceiver(mNetworkChangeReceiver);
+            mSearchScheduler.cancel();
             mSearchField = null;
             mTextWatcher = null;
             mSearchManager.cancelAllRunningSearchProcesses();
+            // cancels every download, the idle threads then go away on their own.
+            mDownloadScheduler.startGeneration();
+            mDownloadScheduler.cancelUnreferenced();
             mIsDetached = true;
         }
     }
 
+    /**
+     * @return
+     * The number of thumbnail downloads dropped before they started, because the displayed search no
+     * longer needed them.
+     */
+    public long getDroppedDownloadCount()
+    {
+        return mDownloadScheduler.getDroppedCount();
+    }
+
+    /**
+     * @return
+     * The number of thumbnail downloads interrupted, because the displayed search no longer needed them.
+     */
+    public long getCancelledDownloadCount()
+    {
+        return mDownloadScheduler.getCancelledCount();
+    }
+
+    /**
+     * @return
+     * The number of thumbnails a search took over from the download of an earlier search, instead of
+     * downloading them again.
+     */
+    public long getReusedDownloadCount()
+    {
+        return mDownloadScheduler.getReusedCount();
+    }
+
     /**
      * explicitly clears the disk cache.
      */
@@ -253,13 +467,43 @@ public class WikiImageSearchFieldDelegate implements SearchResultListener
     @Override
     public void onRemoteSearchError(ImageQueryError resultError)
     {
+        // let the next scroll try loading the batch again.
+        if(isLoadMoreSearch(resultError.requestId))
+            mLoadMoreSearch = null;
         // TODO: do some error handling an return to the ImageSearchResultListener
     }
 
+    /**
+     * The thumbnail downloads started on behalf of one request.
+     */
+    private static class DownloadGeneration
+    {
+        final String requestId;
+        final long id;
+        // by page id, so that a page is only downloaded once whichever page set of the search it is in.
+        final Set<Integer> submittedPages = Collections.synchronizedSet(new HashSet<Integer>());
+        // the files, null if not found, of the pages whose image has been resolved, by page id.  Only
+        // accessed on the handler thread.
+        final Map<Integer, File> resolvedImages = new HashMap<Integer, File>();
+
+        DownloadGeneration(String requestId, long id)
+        {
+            this.requestId = requestId;
+            this.id = id;
+        }
+    }
+
     public static interface ImageSearchResultListener
     {
         public void onImageFound(Page page, File imgFile);
         public void onNewPageSet(ImageQueryResults newSetOfResults);
+        /**
+         * @param results
+         * All the pages displayed so far, including the appended ones.
+         * @param appendedPages
+         * The pages added to the end, indexed right after the ones already displayed.
+         */
+        public void onPagesAppended(ImageQueryResults results, List<Page> appendedPages);
         public void onImageNotFound(Page page);
     }
 }
@@ -1,13 +1,24 @@
 package galo.sample.wiki.search;
 
+import android.content.Context;
 import android.os.Handler;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
+import galo.sample.wiki.api.ImageQueryResults;
 import galo.sample.wiki.api.WikiImageQuery;
 import galo.sample.wiki.api.WikiImageQueryFactory;
+import galo.sample.wiki.concurrent.ExecutorRegistry;
+import galo.sample.wiki.net.AdaptiveConcurrencyLimiter;
+import galo.sample.wiki.net.ConnectionPoolStats;
+import galo.sample.wiki.net.HostConcurrencyLimits;
+import galo.sample.wiki.net.HttpTransport;
+import galo.sample.wiki.net.ResilientRequestExecutor;
+import galo.sample.wiki.util.ResourceProfile;
 
 /**
  * Processes queries by avenue of an {@link SearchRunnable} object to the Wikipedia API calling on
@@ -17,16 +28,40 @@ import galo.sample.wiki.api.WikiImageQueryFactory;
  */
 public class WikiPageSearchController
 {
+    private static final String WIKI_API_HOST = "en.wikipedia.org";
+    private static final int MAX_CONNECTIONS_TO_WIKI_API = 2;
+
+    private static HttpTransport sSharedTransport;
+    // shared so that the latencies hedging is based on and the retry budget cover every search.
+    private static final ResilientRequestExecutor sApiRequestExecutor = new ResilientRequestExecutor();
+
     private int mMaxThumbSize,
                 mRecordCount;
 
     private Handler mHandler;
-    private ExecutorService mExecutorService;
+    private LatestWinsSearchExecutor mSearchExecutor;
+    // a lane of its own, so that loading more never supersedes or preempts a first-page search.
+    private LatestWinsSearchExecutor mMoreSearchExecutor;
+    // cancelling a search on the Main Looper thread closes its sockets on one of these threads.
+    private Executor mAbortExecutor;
 
-    private ProcessStateMap mProcessStateMap;
+    private QueryResultCache mResultCache;
+    private QueryResultDiskCache mDiskCache;
+    private final Set<SearchHandle> mActiveSearches = Collections.newSetFromMap(new ConcurrentHashMap<SearchHandle, Boolean>());
+    private final SearchHandle.CompletionListener mActiveSearchRemover = new SearchHandle.CompletionListener()
+    {
+        @Override
+        public void onSearchCompleted(SearchHandle handle)
+        {
+            mActiveSearches.remove(handle);
+        }
+    };
+    private final CancellationStats mCancellationStats = new CancellationStats();
 
     /**
      *
+     * @param context
+     * Any context, used to lazily create the process-wide {@link HttpTransport}.
      * @param maxThumbSize
      * Specifies the maximum width or height dimension an image can be returned from the query.
      * @param recordCount
@@ -34,55 +69,267 @@ public class WikiPageSearchController
      * size may return more than specified here.  For example, on occasion I will request 50, but I
      * am returned 51 records.
      */
-    public WikiPageSearchController(int maxThumbSize, int recordCount)
+    public WikiPageSearchController(Context context, int maxThumbSize, int recordCount)
     {
+        getSharedTransport(context);
         mMaxThumbSize = maxThumbSize;
         mRecordCount = recordCount;
         mHandler = new Handler();
-        mProcessStateMap = new ProcessStateMap();
-        mExecutorService = Executors.newCachedThreadPool(new ThreadFactory()
+        // the heap limit is known even before the profile has been built, see ResourceProfile.getInstance().
+        mResultCache = new QueryResultCache(QueryResultCache.getMaxSizeBytesForHeap(
+                ResourceProfile.getInstance(context).getHeapLimitBytes()), QueryResultCache.DEFAULT_TIME_TO_LIVE_MS);
+        final QueryResultDiskCache diskCache = new QueryResultDiskCache(new File(context.getCacheDir()
+                , QueryResultDiskCache.DEFAULT_PATH), QueryResultDiskCache.DEFAULT_MAX_SIZE_BYTES);
+        final Context appContext = context.getApplicationContext();
+        // scaled to the device once the storage has been probed, off the Main Looper thread.
+        ExecutorRegistry.getExecutor(context, ExecutorRegistry.Role.DISK_IO).execute(new Runnable()
         {
             @Override
-            public Thread newThread(Runnable r)
+            public void run()
             {
-                return new Thread(r,"RemoteSearchThread");
+                diskCache.setMaxSizeBytes(ResourceProfile.getProbedInstance(appContext)
+                        .getDiskCacheBytes(QueryResultDiskCache.DEFAULT_MAX_SIZE_BYTES));
             }
         });
+        mDiskCache = diskCache;
+        // the searches of every controller share the process' network threads.
+        mSearchExecutor = new LatestWinsSearchExecutor(LatestWinsSearchExecutor.DEFAULT_MAX_CONCURRENT
+                , ExecutorRegistry.getExecutor(context, ExecutorRegistry.Role.NETWORK_IO));
+        mMoreSearchExecutor = new LatestWinsSearchExecutor(1, ExecutorRegistry.getExecutor(context, ExecutorRegistry.Role.NETWORK_IO));
+        mAbortExecutor = ExecutorRegistry.getExecutor(context, ExecutorRegistry.Role.NETWORK_IO);
+    }
+
+    /**
+     * Retrieves the single http transport shared by every search in the process, creating it on first
+     * use.  Connections to the Wikipedia API are kept alive between searches so that a new keystroke
+     * does not pay for a new TCP and TLS handshake.
+     *
+     * @param context
+     * Any context, only used the first time to create the transport.
+     * @return
+     * The process-wide http transport.
+     */
+    public static synchronized HttpTransport getSharedTransport(Context context)
+    {
+        if(sSharedTransport == null)
+        {
+            sSharedTransport = new HttpTransport(context);
+            sSharedTransport.setMaxConnectionsForHost(WIKI_API_HOST, MAX_CONNECTIONS_TO_WIKI_API);
+        }
+        return sSharedTransport;
+    }
+
+    /**
+     * @return
+     * The current state of the shared connection pool, such as idle and active connections and how
+     * often a connection has been reused.
+     */
+    public ConnectionPoolStats getConnectionPoolStats()
+    {
+        return sSharedTransport.getPoolStats();
+    }
+
+    /**
+     * @return
+     * The adaptive limiter of requests to the Wikipedia API, with its current limit and queue depth.
+     */
+    public AdaptiveConcurrencyLimiter getApiConcurrencyLimiter()
+    {
+        return HostConcurrencyLimits.forHost(WIKI_API_HOST);
+    }
+
+    /**
+     * @return
+     * The executor retrying and hedging requests to the Wikipedia API, with its retry and hedge counts.
+     */
+    public ResilientRequestExecutor getApiRequestExecutor()
+    {
+        return sApiRequestExecutor;
     }
 
     /**
-     * Starts a query to the Wikipedia api and returns a uniquely identifiable request string to so
-     * that one can compare and/or associate one query with the returning results, since multiple
-     * requests can be performing at the same time.  You can use this request id to also cancel running
-     * tasks from coming back to the Listener with data or stop possibly queued tasks to not perform.
+     * @return
+     * A moving average of the time the Wikipedia API takes to respond, or -1 if not yet known.
+     */
+    public long getAverageRoundTripMillis()
+    {
+        return sSharedTransport.getAverageResponseMillis();
+    }
+
+    /**
+     * Starts a query to the Wikipedia api and returns a handle to the search so that one can compare
+     * and/or associate one query with the returning results, through {@link SearchHandle#getRequestId()},
+     * since multiple requests can be performing at the same time.  You can use the handle to also cancel
+     * running tasks from coming back to the Listener with data or stop possibly queued tasks to not perform.
+     *
+     * Only the newest searches run, see {@link LatestWinsSearchExecutor}: starting a search cancels
+     * every earlier one that has not started yet and, when too many are running, the oldest running one.
+     *
+     * If the same search, after normalization, has been made recently, the cached results are given to
+     * the listener without going to the network or through the search threads.  Otherwise, results
+     * cached on disk by an earlier search, possibly from an earlier run of the app, are given to the
+     * listener first, marked provisional, and are followed by the results from the network.  When
+     * neither is available but a shorter term this one starts with was searched recently, its results
+     * narrowed down to this term are given to the listener as provisional results until the actual
+     * results arrive.
      *
      * @param text
      * The text to search with.
      * @param listener
      * The listener that should be notified when a result comes in.
      * @return
-     * A unique process id that can be used to identify and cancel the requested process.
+     * A handle that can be used to identify and cancel the requested search.
+     */
+    public SearchHandle searchAsync(String text, SearchResultListener listener)
+    {
+        SearchHandle handle = new SearchHandle();
+        WikiImageQuery query = WikiImageQueryFactory.generateQuery(text, handle.getRequestId(), mMaxThumbSize, mRecordCount);
+        mActiveSearches.add(handle);
+        handle.addCompletionListener(mActiveSearchRemover);
+
+        ImageQueryResults cachedResults = mResultCache.get(QueryResultCache.createKey(query));
+        if(cachedResults != null)
+            deliverCachedResults(handle, listener, cachedResults.withRequestId(handle.getRequestId()));
+        else
+        {
+            SearchRunnable searchRunnable = new SearchRunnable(listener, handle, mHandler, sSharedTransport, sApiRequestExecutor
+                    , mResultCache, mDiskCache, QueryResultCache.DEFAULT_TIME_TO_LIVE_MS, mCancellationStats, mAbortExecutor, query);
+            // while the request is out, show what earlier results of a shorter term already tell us.
+            ImageQueryResults provisionalResults = mResultCache.findProvisionalResults(text, mMaxThumbSize, mRecordCount, handle.getRequestId());
+            if(provisionalResults != null)
+                deliverProvisionalResults(handle, listener, provisionalResults);
+            mSearchExecutor.submit(handle, searchRunnable);
+        }
+        return handle;
+    }
+
+    /**
+     * Starts a query for the batch of pages following earlier results of the same search.  Like
+     * {@link #searchAsync(String, SearchResultListener)} the listener receives the results under the
+     * request id of the returned handle, but these only hold the pages of the new batch, to be appended
+     * with {@link ImageQueryResults#append(ImageQueryResults)}.  Batches are never cached.  Batches run
+     * apart from first-page searches, a new batch only supersedes earlier batches.
+     *
+     * @param text
+     * The text the earlier results were searched with.
+     * @param previousResults
+     * The results so far, which must have more pages, see {@link ImageQueryResults#hasMorePages()}.
+     * @param recordCount
+     * The maximum number of records the batch should hold.
+     * @param listener
+     * The listener that should be notified when the batch comes in.
+     * @return
+     * A handle that can be used to identify and cancel the requested batch.
+     */
+    public SearchHandle searchMoreAsync(String text, ImageQueryResults previousResults, int recordCount
+            , SearchResultListener listener)
+    {
+        if(!previousResults.hasMorePages())
+            throw new IllegalArgumentException("The results have no more pages to load.");
+        SearchHandle handle = new SearchHandle();
+        WikiImageQuery query = WikiImageQueryFactory.generateContinuationQuery(text, handle.getRequestId()
+                , mMaxThumbSize, recordCount, previousResults);
+        mActiveSearches.add(handle);
+        handle.addCompletionListener(mActiveSearchRemover);
+        mMoreSearchExecutor.submit(handle, new SearchRunnable(listener, handle, mHandler, sSharedTransport, sApiRequestExecutor
+                , mResultCache, mDiskCache, QueryResultCache.DEFAULT_TIME_TO_LIVE_MS, mCancellationStats, mAbortExecutor, query));
+        return handle;
+    }
+
+    /**
+     * Hands cached results to the listener on the handler thread, unless cancelled before then.
+     */
+    private void deliverCachedResults(final SearchHandle handle, final SearchResultListener listener
+            , final ImageQueryResults results)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if(handle.markDelivered())
+                    listener.onSearchResultReceived(results);
+            }
+        });
+    }
+
+    /**
+     * Hands locally derived results to the listener on the handler thread, unless cancelled before
+     * then.  The search keeps running since the actual results are still to come.
+     */
+    private void deliverProvisionalResults(final SearchHandle handle, final SearchResultListener listener
+            , final ImageQueryResults results)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if(handle.isActive())
+                    listener.onSearchResultReceived(results);
+            }
+        });
+    }
+
+    /**
+     * @return
+     * The in-memory cache of recent query results, mostly for looking at its hit and miss counts.
+     */
+    public QueryResultCache getResultCache()
+    {
+        return mResultCache;
+    }
+
+    /**
+     * @return
+     * The on-disk cache of query results.  Its methods must not be called on the Main Looper thread.
+     */
+    public QueryResultDiskCache getDiskCache()
+    {
+        return mDiskCache;
+    }
+
+    /**
+     * Use the handle returned from the {@link galo.sample.wiki.search.WikiPageSearchController#searchAsync}
+     * to cancel a search.  If the search is waiting for or reading its response, the request is
+     * aborted and its connection closed right away.
+     * @param handle
+     * The handle returned by the {@link WikiPageSearchController#searchAsync(String, SearchResultListener)}
+     * call, null is ignored.
+     * @return
+     * true if the search was successfully canceled, false if the search has concluded or was previously
+     * cancelled.
+     */
+    public boolean cancel(SearchHandle handle)
+    {
+        return handle != null && handle.cancel();
+    }
+
+    /**
+     * @return
+     * How long cancelled searches took to let go of their thread and connection.
+     */
+    public CancellationStats getCancellationStats()
+    {
+        return mCancellationStats;
+    }
+
+    /**
+     * @return
+     * The number of searches dropped before they started, because a newer search superseded them.
      */
-    public String searchAsync(String text, SearchResultListener listener)
+    public long getSupersededSearchCount()
     {
-        WikiImageQuery query = WikiImageQueryFactory.generateUniquelyIndentifiableQuery(text, mMaxThumbSize, mRecordCount);
-        String requestId = query.getRequestId();
-        mExecutorService.execute(new SearchRunnable(listener, mProcessStateMap, mHandler, query));
-        return requestId;
+        return mSearchExecutor.getSupersededCount();
     }
 
     /**
-     * Use the search id returned from the {@link galo.sample.wiki.search.WikiPageSearchController#searchAsync}
-     * to cancel a process.
-     * @param processId
-     * The process id returned by the {@link WikiPageSearchController#searchAsync(String, SearchResultListener)} call.
      * @return
-     * true if the process was successfully canceled, false if the process has concluded, was previously cancelled
-     * , or was never a process.
+     * The number of running searches cancelled to let a newer search go out right away.
      */
-    public boolean cancel(String processId)
+    public long getPreemptedSearchCount()
     {
-        return mProcessStateMap.removeProcess(processId);
+        return mSearchExecutor.getPreemptedCount();
     }
 
     /**
@@ -90,6 +337,7 @@ public class WikiPageSearchController
      */
     public void cancelAllRunningSearchProcesses()
     {
-        mProcessStateMap.removeAllRunningProcesses();
+        for(SearchHandle handle : mActiveSearches)
+            handle.cancel();
     }
 }
@@ -60,7 +60,8 @@ public class ImageListAdapter extends ArrayAdapter<ImageLoadAndDisplayInterface>
      * {@inheritDoc}
      *
      * This will also iterate through the adapter elements, remove bound ImageViews and their
-     * BitmapDrawables, and recycle all bitmaps that have not been explicitly tagged  NOT to do so
+     * BitmapDrawables, and give their borrowed bitmaps back to the cache, which keeps them for the
+     * next page set rather than recycling them.
      *
      * @see ImageLoadAndDisplayInterface#recycle()
      */
@@ -12,6 +12,7 @@ import java.lang.ref.WeakReference;
 
 import galo.sample.wiki.R;
 import galo.sample.wiki.api.Page;
+import galo.sample.wiki.image.CachedBitmap;
 
 /**
  * Acting as an interface between an ImageView and an image-loading thread, it provides memory-
@@ -19,6 +20,10 @@ import galo.sample.wiki.api.Page;
  * used for an adapter, giving a non-ui thread access to set the bitmap once it is loaded and setting
  * a bound ImageView's image once it is loaded.
  *
+ * Decoded thumbnails are borrowed from a {@link galo.sample.wiki.image.BitmapMemoryCache} rather than
+ * owned, and given back when recycled, so that they outlive the page set for the next search showing
+ * them.
+ *
  * Created by Galo on 2/27/2015.
  */
 public class ImageLoadAndDisplayInterface
@@ -28,7 +33,7 @@ public class ImageLoadAndDisplayInterface
     private boolean mRecycled;
     private WeakReference<ImageView> mBoundImageViewWRef;
     private Bitmap mBitmap;
-    private boolean mShouldRecycleBitmap;
+    private CachedBitmap mCachedBitmap;
 
     public ImageLoadAndDisplayInterface(Page page)
     {
@@ -81,20 +86,38 @@ public class ImageLoadAndDisplayInterface
     }
 
     /**
-     * Sets the bitmap image to this interface, setting a bounded image view if it has one.
+     * Sets a borrowed bitmap to this interface, which gives it back once replaced or recycled.
+     * @param cachedBitmap
+     * The borrowed bitmap, released right away if this has already been recycled.
+     * @param animate
+     * True if you want the bitmap to animate, false if not.
+     */
+    public void setCachedBitmap(CachedBitmap cachedBitmap, boolean animate)
+    {
+        if(mRecycled)
+        {
+            cachedBitmap.release();
+            return;
+        }
+        setBitmap(cachedBitmap.getBitmap(), animate);
+        // only given back once the view no longer draws it.
+        mCachedBitmap = cachedBitmap;
+    }
+
+    /**
+     * Sets the bitmap image to this interface, setting a bounded image view if it has one.  The bitmap
+     * is not recycled by this interface, which means that somewhere else that is being taken care of.
      * @param bmap
      * The bitmap to apply to this reference.
      * @param animate
      * True if you want the bitmap to animate, false if not.
-     * @param recyleBitmapOnRecycleInvocation
-     * True to set this Bitmap to get recycled when a recycle call is performed on this object.
-     * False if it should not be recycled. (This means that somewhere else that is being taken care of).
      */
-    public void setBitmap(Bitmap bmap, boolean animate, boolean recyleBitmapOnRecycleInvocation)
+    public void setBitmap(Bitmap bmap, boolean animate)
     {
         if(!mRecycled)
         {
-            mShouldRecycleBitmap = recyleBitmapOnRecycleInvocation;
+            CachedBitmap previous = mCachedBitmap;
+            mCachedBitmap = null;
             mBitmap = bmap;
             ImageView iv = mBoundImageViewWRef != null ? mBoundImageViewWRef.get() : null;
             if (iv != null)
@@ -114,6 +137,8 @@ public class ImageLoadAndDisplayInterface
                     Log.d("img", "" + mPage.getIndex() + ": w" + iv.getWidth() + " h" + iv.getHeight() + " parent:" + iv.getParent());
                 }
             }
+            if(previous != null)
+                previous.release();
         }
     }
 
@@ -133,14 +158,20 @@ public class ImageLoadAndDisplayInterface
         }
     }
 
+    /**
+     * Unbinds the bitmap from the image view and gives a borrowed bitmap back to its cache.
+     */
     public void recycle()
     {
-        if(mShouldRecycleBitmap && mBitmap != null && !mBitmap.isRecycled())
-            mBitmap.recycle();
         mBitmap = null;
         ImageView iv = mBoundImageViewWRef != null ? mBoundImageViewWRef.get() : null;
-        if(iv != null)
+        if(iv != null && iv.getTag() == this)
             iv.setImageDrawable(null);
+        if(mCachedBitmap != null)
+        {
+            mCachedBitmap.release();
+            mCachedBitmap = null;
+        }
         mRecycled = true;
     }
 
@@ -11,12 +11,14 @@ import android.view.View;
 import android.widget.EditText;
 
 import java.io.File;
+import java.util.List;
 
 import galo.sample.wiki.R;
 import galo.sample.wiki.api.ImageQueryResults;
 import galo.sample.wiki.api.Page;
 import galo.sample.wiki.search.WikiImageSearchFieldDelegate;
 import galo.sample.wiki.ui.ThumbnailPageFragment.OnFragmentActionListener;
+import galo.sample.wiki.util.ResourceProfile;
 import galo.sample.wiki.search.WikiImageSearchFieldDelegate.ImageSearchResultListener;
 
 /**
@@ -36,6 +38,8 @@ public class ImageSearchActivity extends FragmentActivity implements ImageSearch
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // find out what the device can take while the views are being set up.
+        ResourceProfile.prefetch(this);
         setContentView(R.layout.activity_image_search);
         mSearchField = (EditText) findViewById(R.id.search_field);
         FragmentManager fm = getSupportFragmentManager();
@@ -53,7 +57,12 @@ public class ImageSearchActivity extends FragmentActivity implements ImageSearch
     {
         super.onResume();
         if(mSearchDelegate == null)
+        {
             mSearchDelegate = new WikiImageSearchFieldDelegate(mSearchField, this);
+            ThumbnailPageFragment fragment = getThumbnailFragment();
+            if(fragment!=null)
+                mSearchDelegate.setViewport(fragment.getViewport());
+        }
     }
 
     @Override
@@ -119,6 +128,17 @@ public class ImageSearchActivity extends FragmentActivity implements ImageSearch
             fragment.onNewPageSet(newSetOfResults);
     }
 
+    /**
+     * Acts as a proxy between the fragment and the ImageSearchDelegate.
+     */
+    @Override
+    public void onPagesAppended(ImageQueryResults results, List<Page> appendedPages)
+    {
+        ThumbnailPageFragment fragment = getThumbnailFragment();
+        if(fragment!=null)
+            fragment.onPagesAppended(results, appendedPages);
+    }
+
     /**
      * Acts as a proxy between the fragment and the ImageSearchDelegate.
      */
@@ -146,4 +166,14 @@ public class ImageSearchActivity extends FragmentActivity implements ImageSearch
     {
         // TODO: display full copy of image on a separate fragment.
     }
+
+    /**
+     * Acts as a proxy between the fragment and the ImageSearchDelegate.
+     */
+    @Override
+    public void onLoadMoreRequested()
+    {
+        if(mSearchDelegate != null)
+            mSearchDelegate.loadMore();
+    }
 }
@@ -8,22 +8,27 @@ import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.GridView;
+import android.widget.ImageView;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
 
 import galo.sample.wiki.R;
 import galo.sample.wiki.api.ImageQueryResults;
 import galo.sample.wiki.api.Page;
+import galo.sample.wiki.concurrent.ExecutorRegistry;
+import galo.sample.wiki.concurrent.PriorityDispatcher;
+import galo.sample.wiki.concurrent.Viewport;
+import galo.sample.wiki.image.BitmapMemoryCache;
+import galo.sample.wiki.image.CachedBitmap;
+import galo.sample.wiki.image.ThumbnailDecoder;
 import galo.sample.wiki.search.WikiImageSearchFieldDelegate;
-import galo.sample.wiki.util.DeviceInfoUtil;
+import galo.sample.wiki.util.ResourceProfile;
 
 /**
  * A {@link Fragment} that loads images from a file and displays them in a grid view.
@@ -36,16 +41,14 @@ import galo.sample.wiki.util.DeviceInfoUtil;
 public class ThumbnailPageFragment extends Fragment implements WikiImageSearchFieldDelegate.ImageSearchResultListener
 {
     private static final String ARG_ALT_IMG_RES = "alternateImageResource";
-    private static final ThreadFactory IMAGE_LOADER_THREADFACTORY = new ThreadFactory()
-    {
-        @Override
-        public Thread newThread(Runnable r)
-        {
-            return new Thread(r, "ImageLoaderThread");
-        }
-    };
+    // how many thumbnails before the end of the grid the next batch of pages is asked for.
+    private static final int LOAD_MORE_THRESHOLD = 12;
 
-    private ExecutorService mImageLoaderService;
+    private PriorityDispatcher mImageLoadDispatcher;
+    private final Viewport mViewport = new Viewport();
+    private BitmapMemoryCache mBitmapCache;
+    private ThumbnailDecoder mThumbnailDecoder;
+    private int mThumbnailSizePx;
     private int mAlternateImageResourceId;
     private Bitmap mAlternameImageBitmap;
     private final Object mAlternateImageBitmapLock = new Object();
@@ -104,7 +107,14 @@ public class ThumbnailPageFragment extends Fragment implements WikiImageSearchFi
         if (getArguments() != null)
             mAlternateImageResourceId = getArguments().getInt(ARG_ALT_IMG_RES);
         setRetainInstance(true);
-        mImageLoaderService = Executors.newFixedThreadPool(DeviceInfoUtil.getNumberOfProcessors()*2, IMAGE_LOADER_THREADFACTORY);
+        mBitmapCache = BitmapMemoryCache.getInstance(getActivity());
+        // decodes reuse the bitmaps of cells recycled along with earlier page sets, and are in RGB_565
+        // where memory is scarce.
+        mThumbnailDecoder = new ThumbnailDecoder(mBitmapCache.getPool(), ResourceProfile.getInstance(getActivity()).isLowMemory());
+        mThumbnailSizePx = getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+        // decode what is on screen first, on the process' decode threads.
+        mImageLoadDispatcher = new PriorityDispatcher(ExecutorRegistry.getExecutor(getActivity(), ExecutorRegistry.Role.DECODE)
+                , ExecutorRegistry.getMaxThreads(getActivity(), ExecutorRegistry.Role.DECODE), mViewport);
     }
 
     @Override
@@ -115,6 +125,24 @@ public class ThumbnailPageFragment extends Fragment implements WikiImageSearchFi
         if(mImageListAdapter == null)
             mImageListAdapter = new ImageListAdapter(getActivity(), R.layout.thumbnail_layout, new ArrayList<ImageLoadAndDisplayInterface>());
         mImageGrid.setAdapter(mImageListAdapter);
+        mImageGrid.setOnScrollListener(new AbsListView.OnScrollListener()
+        {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState)
+            {
+                // do nothing
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount)
+            {
+                // page indices start at 1.
+                mViewport.update(firstVisibleItem + 1, visibleItemCount);
+                if(mListener != null && totalItemCount > 0
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - LOAD_MORE_THRESHOLD)
+                    mListener.onLoadMoreRequested();
+            }
+        });
 
         return v;
     }
@@ -135,6 +163,15 @@ public class ThumbnailPageFragment extends Fragment implements WikiImageSearchFi
             mAlternameImageBitmap.recycle();
     }
 
+    @Override
+    public void onLowMemory()
+    {
+        super.onLowMemory();
+        // the thumbnails on screen stay, the rest can be decoded again.
+        mBitmapCache.trimToBorrowed();
+        mBitmapCache.getPool().clear();
+    }
+
     private void recycleAdapterImages()
     {
         ImageListAdapter adapter = (ImageListAdapter) mImageGrid.getAdapter();
@@ -155,13 +192,77 @@ public class ThumbnailPageFragment extends Fragment implements WikiImageSearchFi
         adapter.notifyDataSetChanged();
     }
 
+    @Override
+    public void onPagesAppended(ImageQueryResults results, List<Page> appendedPages)
+    {
+        ImageListAdapter adapter = (ImageListAdapter) mImageGrid.getAdapter();
+        adapter.setNotifyOnChange(false);
+        List<Page> pages = new ArrayList<Page>(appendedPages);
+        Collections.sort(pages, mPageComparator);
+        for(Page p : pages)
+            adapter.add(new ImageLoadAndDisplayInterface(p));
+        adapter.setNotifyOnChange(true);
+        adapter.notifyDataSetChanged();
+    }
+
+    /**
+     * @return
+     * The decoder of the thumbnails, with how many bytes of pixels they were decoded into.
+     */
+    public ThumbnailDecoder getThumbnailDecoder()
+    {
+        return mThumbnailDecoder;
+    }
+
+    /**
+     * @return
+     * The viewport of the grid, kept up to date as the user scrolls.
+     */
+    public Viewport getViewport()
+    {
+        return mViewport;
+    }
+
+    /**
+     * Finds the adapter element displaying the page.
+     *
+     * @return
+     * The element or null if the page is not part of the current page set, which happens when images
+     * of a page set that has since been replaced are still coming in.
+     */
+    private ImageLoadAndDisplayInterface findPageWrapper(Page page)
+    {
+        ImageListAdapter adapter = (ImageListAdapter) mImageGrid.getAdapter();
+        int position = page.getIndex() - 1;
+        if(position < 0 || position >= adapter.getCount())
+            return null;
+        ImageLoadAndDisplayInterface pageWrapper = adapter.getItem(position);
+        Page displayedPage = pageWrapper.getPage();
+        boolean bSamePage = displayedPage == page || (displayedPage.getPageId() == page.getPageId()
+                && displayedPage.getTitle().equals(page.getTitle()));
+        return bSamePage ? pageWrapper : null;
+    }
+
     @Override
     public void onImageFound(Page page, File imageFile)
     {
-        final ImageLoadAndDisplayInterface pageWrapper = ((ImageListAdapter)mImageGrid.getAdapter())
-                .getItem(page.getIndex() - 1);
+        final ImageLoadAndDisplayInterface pageWrapper = findPageWrapper(page);
+        if(pageWrapper == null)
+            return;
         pageWrapper.setImageFile(imageFile);
-        mImageLoaderService.execute(new Runnable()
+        // decoded for the cell it is shown in, measured if already laid out.
+        ImageView boundImageView = pageWrapper.getBoundedImageView();
+        final int targetWidth = boundImageView != null && boundImageView.getWidth() > 0 ? boundImageView.getWidth() : mThumbnailSizePx,
+                  targetHeight = boundImageView != null && boundImageView.getHeight() > 0 ? boundImageView.getHeight() : mThumbnailSizePx;
+        // a thumbnail already decoded for an earlier page set is shown right away.
+        final String bitmapKey = BitmapMemoryCache.createKey(page.getThumbNail().getSource(), targetWidth, targetHeight);
+        CachedBitmap cachedBitmap = mBitmapCache.borrow(bitmapKey);
+        if(cachedBitmap != null)
+        {
+            pageWrapper.setCachedBitmap(cachedBitmap, false);
+            return;
+        }
+        mImageLoadDispatcher.execute(page.getIndex(), new Runnable()
         {
             @Override
             public void run()
@@ -169,15 +270,17 @@ public class ThumbnailPageFragment extends Fragment implements WikiImageSearchFi
                 if(!pageWrapper.isRecycled())
                 {
                     Activity activity = getActivity();
-                    if(activity != null && pageWrapper.getImageFile().exists())
+                    // a failed decode tells a missing file apart, no need to check for it beforehand.
+                    Bitmap bmap = activity != null ? mThumbnailDecoder.decode(pageWrapper.getImageFile(), targetWidth, targetHeight) : null;
+                    if(bmap != null)
                     {
-                        final Bitmap bmap = BitmapFactory.decodeFile(pageWrapper.getImageFile().getPath());
-                        getActivity().runOnUiThread(new Runnable()
+                        final CachedBitmap decodedBitmap = mBitmapCache.put(bitmapKey, bmap);
+                        activity.runOnUiThread(new Runnable()
                         {
                             @Override
                             public void run() {
-                                if (!pageWrapper.isRecycled())
-                                    pageWrapper.setBitmap(bmap, true, true);
+                                // released right away if the page has been recycled by now.
+                                pageWrapper.setCachedBitmap(decodedBitmap, true);
                             }
                         });
                     }
@@ -189,9 +292,10 @@ public class ThumbnailPageFragment extends Fragment implements WikiImageSearchFi
     @Override
     public void onImageNotFound(Page page)
     {
-        final ImageLoadAndDisplayInterface pageWrapper = ((ImageListAdapter)mImageGrid.getAdapter())
-                .getItem(page.getIndex()-1);
-        mImageLoaderService.execute(new Runnable()
+        final ImageLoadAndDisplayInterface pageWrapper = findPageWrapper(page);
+        if(pageWrapper == null)
+            return;
+        mImageLoadDispatcher.execute(page.getIndex(), new Runnable()
         {
             @Override
             public void run()
@@ -209,7 +313,7 @@ public class ThumbnailPageFragment extends Fragment implements WikiImageSearchFi
                         public void run()
                         {
                             if(!pageWrapper.isRecycled())
-                                pageWrapper.setBitmap(mAlternameImageBitmap, false, false);
+                                pageWrapper.setBitmap(mAlternameImageBitmap, false);
                         }
                     });
                 }
@@ -217,9 +321,14 @@ public class ThumbnailPageFragment extends Fragment implements WikiImageSearchFi
         });
     }
 
-    // TODO: Not Used
     public interface OnFragmentActionListener
     {
+        // TODO: Not Used
         public void onImageSelected(View v, Page p);
+
+        /**
+         * Called as the user scrolls near the end of the displayed pages, possibly many times in a row.
+         */
+        public void onLoadMoreRequested();
     }
 }
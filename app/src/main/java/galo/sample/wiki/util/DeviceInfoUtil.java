@@ -16,14 +16,25 @@ import java.util.Scanner;
  */
 public class DeviceInfoUtil
 {
+    // 0 until counted.
+    private static volatile int sNumberOfProcessors;
+
     /**
      * Sampled from <a href="http://stackoverflow.com/questions/7593829/how-to-get-the-processor-number-on-android">
      * http://stackoverflow.com/questions/7593829/how-to-get-the-processor-number-on-android</a>
      * @return
      * Returns the total number of processors the device has as per the '/proc/cpuinfo' file
-     * shows, but at least 1.
+     * shows, but at least 1.  The file is only read the first time.  This is not necessarily how many
+     * this process can use, see {@link ResourceProfile#getUsableProcessors()}.
      */
     public static int getNumberOfProcessors()
+    {
+        if(sNumberOfProcessors == 0)
+            sNumberOfProcessors = countProcessors();
+        return sNumberOfProcessors;
+    }
+
+    private static int countProcessors()
     {
         int nCpuCount = 0;
         Scanner sc = null;
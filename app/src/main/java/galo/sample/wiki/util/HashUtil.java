@@ -0,0 +1,64 @@
+package galo.sample.wiki.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Utilities for turning text and bytes into hashes usable as file names.
+ */
+public class HashUtil
+{
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * @param bytes
+     * The bytes, i.e. a digest.
+     * @return
+     * The bytes as a lower case hexadecimal string, two characters per byte.
+     */
+    public static String toHexString(byte[] bytes)
+    {
+        char[] hex = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++)
+        {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return
+     * A new SHA-1 digest, which every Android platform provides.
+     */
+    public static MessageDigest newSha1Digest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 is not available.", e);
+        }
+    }
+
+    /**
+     * @param text
+     * The text to hash, encoded as UTF-8.
+     * @return
+     * The SHA-1 hash of the text as a 40 character hexadecimal string.
+     */
+    public static String sha1Hex(String text)
+    {
+        try
+        {
+            return toHexString(newSha1Digest().digest(text.getBytes("UTF-8")));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("UTF-8 is not available.", e);
+        }
+    }
+}
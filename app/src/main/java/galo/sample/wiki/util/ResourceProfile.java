@@ -0,0 +1,477 @@
+package galo.sample.wiki.util;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import galo.sample.wiki.concurrent.ExecutorRegistry;
+
+/**
+ * What this process can actually use of the device, found out once and cached, which pool sizes and
+ * cache capacities default from:
+ * <ul>
+ *     <li>the processors it may run on, the fewest of those online, those of its cpu affinity and the
+ *     quota of its cgroup,</li>
+ *     <li>the memory class and the limit of its heap,</li>
+ *     <li>how fast the cache directory is written to, probed in the background.</li>
+ * </ul>
+ *
+ * Call {@link #prefetch(Context)} early, so that the profile is built on a disk thread rather than by
+ * the first caller needing it.  The profile is never built on the Main Looper thread, which gets a
+ * conservative default profile until the prefetched one is ready.
+ *
+ * This is thread-safe.
+ */
+public class ResourceProfile
+{
+    private static final String TAG = ResourceProfile.class.getSimpleName();
+    private static final String PROC_STATUS = "/proc/self/status",
+                                PROC_CGROUP = "/proc/self/cgroup",
+                                CGROUP_ROOT = "/sys/fs/cgroup",
+                                CGROUP_V1_CPU = "/sys/fs/cgroup/cpu";
+    private static final String CPUS_ALLOWED_LIST = "Cpus_allowed_list:";
+    // at or below this memory class, in megabytes, memory is scarce.
+    private static final int LOW_MEMORY_CLASS_MB = 32;
+    // the memory class default disk cache sizes are meant for, they scale with it from half to twice.
+    private static final int REFERENCE_MEMORY_CLASS_MB = 64;
+    private static final String PROBE_FILE_NAME = ".write_probe";
+    private static final int PROBE_SIZE_BYTES = 256 * 1024,
+                             PROBE_CHUNK_BYTES = 32 * 1024;
+    // below this, disk caches are written one at a time so as not to thrash slow flash.
+    private static final long SLOW_STORAGE_BYTES_PER_SEC = 4 * 1024 * 1024;
+    public static final int DEFAULT_DISK_IO_THREADS = 2;
+
+    private static volatile ResourceProfile sInstance;
+    // handed to the Main Looper thread until the profile has been built, touched by it only.
+    private static ResourceProfile sDefaultInstance;
+    private static final AtomicBoolean sPrefetchStarted = new AtomicBoolean();
+
+    private final int mOnlineProcessors,
+                      mAffinityProcessors,
+                      mQuotaProcessors,
+                      mUsableProcessors;
+    private final int mMemoryClassMb;
+    private final long mMaxHeapBytes;
+    private volatile long mCacheWriteBytesPerSec = -1;
+
+    /**
+     *
+     * @param context
+     * The application context, used to find out the memory class.
+     * @param bReadLimits
+     * True to read the cpu affinity and cgroup quota of the process, false to leave them unknown and
+     * go by the processors online, without touching files.
+     */
+    private ResourceProfile(Context context, boolean bReadLimits)
+    {
+        mOnlineProcessors = Math.max(1, Runtime.getRuntime().availableProcessors());
+        mAffinityProcessors = bReadLimits ? readAffinityProcessors() : -1;
+        mQuotaProcessors = bReadLimits ? readQuotaProcessors() : -1;
+        int usable = mOnlineProcessors;
+        if(mAffinityProcessors > 0)
+            usable = Math.min(usable, mAffinityProcessors);
+        if(mQuotaProcessors > 0)
+            usable = Math.min(usable, mQuotaProcessors);
+        mUsableProcessors = usable;
+
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mMemoryClassMb = activityManager.getMemoryClass();
+        mMaxHeapBytes = Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * Retrieves the profile, building it on first use without probing the cache directory, which only
+     * {@link #prefetch(Context)} does.
+     *
+     * On the Main Looper thread the profile is never built: until it has been, a default profile is
+     * returned instead, which goes by the processors online and the memory class without reading the
+     * process' limits, and the profile is prefetched.
+     *
+     * @param context
+     * Any context, only used the first time to find out the memory class.
+     * @return
+     * The process-wide profile, or the default one on the Main Looper thread until it is ready.
+     */
+    public static ResourceProfile getInstance(Context context)
+    {
+        ResourceProfile profile = sInstance;
+        if(profile != null)
+            return profile;
+        if(Looper.myLooper() == Looper.getMainLooper())
+        {
+            prefetch(context);
+            if(sDefaultInstance == null)
+                sDefaultInstance = new ResourceProfile(context.getApplicationContext(), false);
+            return sDefaultInstance;
+        }
+        return buildInstance(context);
+    }
+
+    private static synchronized ResourceProfile buildInstance(Context context)
+    {
+        if(sInstance == null)
+            sInstance = new ResourceProfile(context.getApplicationContext(), true);
+        return sInstance;
+    }
+
+    /**
+     * Builds the profile on a disk thread, then probes how fast the cache directory is written to and
+     * resizes the pools accordingly.  Does nothing more after the first call.
+     *
+     * @param context
+     * Any context, used to find out the memory class and locate the cache directory.
+     */
+    public static void prefetch(Context context)
+    {
+        // without taking a lock the profile may be held by while being built.
+        if(!sPrefetchStarted.compareAndSet(false, true))
+            return;
+        final Context appContext = context.getApplicationContext();
+        ExecutorRegistry.getExecutor(appContext, ExecutorRegistry.Role.DISK_IO).execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ResourceProfile profile = getProbedInstance(appContext);
+                ExecutorRegistry.resize(ExecutorRegistry.Role.DISK_IO, profile.getDiskIoThreads());
+                // in case the decode pool was sized from the default profile.
+                ExecutorRegistry.resize(ExecutorRegistry.Role.DECODE, profile.getCpuBoundThreads());
+            }
+        });
+    }
+
+    /**
+     * Retrieves the profile, building it and probing the cache directory first if not done yet, so that
+     * what depends on how fast the directory is written to can be decided.  Must not be called on the
+     * Main Looper thread.
+     *
+     * @param context
+     * Any context, used to find out the memory class and locate the cache directory.
+     * @return
+     * The process-wide profile, probed.
+     */
+    public static ResourceProfile getProbedInstance(Context context)
+    {
+        Context appContext = context.getApplicationContext();
+        ResourceProfile profile = buildInstance(appContext);
+        synchronized (profile)
+        {
+            if(profile.mCacheWriteBytesPerSec < 0)
+                profile.mCacheWriteBytesPerSec = probeWriteBytesPerSec(appContext.getCacheDir());
+        }
+        return profile;
+    }
+
+    /**
+     * @return
+     * The number of processors listed by the Cpus_allowed_list of the process' status, or -1 if unknown.
+     */
+    private static int readAffinityProcessors()
+    {
+        BufferedReader reader = null;
+        try
+        {
+            reader = new BufferedReader(new FileReader(PROC_STATUS));
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                if(line.startsWith(CPUS_ALLOWED_LIST))
+                    return countCpuList(line.substring(CPUS_ALLOWED_LIST.length()).trim());
+            }
+        }
+        catch (IOException e)
+        {
+            Log.d(TAG, "Unable to read the cpu affinity.");
+        }
+        catch (NumberFormatException e)
+        {
+            Log.d(TAG, "Unable to parse the cpu affinity.");
+        }
+        finally
+        {
+            if(reader != null)
+                try { reader.close(); } catch (IOException e) {/*do nothing*/}
+        }
+        return -1;
+    }
+
+    /**
+     * @param cpuList
+     * A list of cpus such as "0-3,6".
+     * @return
+     * The number of cpus in the list.
+     */
+    static int countCpuList(String cpuList)
+    {
+        int count = 0;
+        for(String range : cpuList.split(","))
+        {
+            range = range.trim();
+            if(range.isEmpty())
+                continue;
+            int dash = range.indexOf('-');
+            if(dash < 0)
+                count++;
+            else
+                count += Integer.parseInt(range.substring(dash + 1)) - Integer.parseInt(range.substring(0, dash)) + 1;
+        }
+        return count;
+    }
+
+    /**
+     * @return
+     * The number of processors the cpu quota of the process' cgroup amounts to, rounded up, or -1 if
+     * there is no quota or it is unknown.
+     */
+    private static int readQuotaProcessors()
+    {
+        try
+        {
+            // cgroup v2: "<quota> <period>" or "max <period>", in the process' own cgroup if mounted.
+            String cpuMax = null;
+            String cgroupPath = readCgroupV2Path();
+            if(cgroupPath != null)
+                cpuMax = readFirstLine(new File(CGROUP_ROOT + cgroupPath, "cpu.max"));
+            if(cpuMax == null)
+                cpuMax = readFirstLine(new File(CGROUP_ROOT, "cpu.max"));
+            if(cpuMax != null)
+            {
+                String[] fields = cpuMax.trim().split("\\s+");
+                if(fields.length == 2 && !"max".equals(fields[0]))
+                    return quotaProcessors(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+                return -1;
+            }
+
+            // cgroup v1: a quota of -1 means none.
+            String quota = readFirstLine(new File(CGROUP_V1_CPU, "cpu.cfs_quota_us")),
+                   period = readFirstLine(new File(CGROUP_V1_CPU, "cpu.cfs_period_us"));
+            if(quota != null && period != null)
+                return quotaProcessors(Long.parseLong(quota.trim()), Long.parseLong(period.trim()));
+        }
+        catch (NumberFormatException e)
+        {
+            Log.d(TAG, "Unable to parse the cgroup cpu quota.");
+        }
+        return -1;
+    }
+
+    private static int quotaProcessors(long quota, long period)
+    {
+        if(quota <= 0 || period <= 0)
+            return -1;
+        return (int) Math.max(1, (quota + period - 1) / period);
+    }
+
+    /**
+     * @return
+     * The path of the process' cgroup v2 cgroup, from the "0::" line of its cgroups, or null if none.
+     */
+    private static String readCgroupV2Path()
+    {
+        BufferedReader reader = null;
+        try
+        {
+            reader = new BufferedReader(new FileReader(PROC_CGROUP));
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                if(line.startsWith("0::"))
+                    return line.substring(3).trim();
+            }
+        }
+        catch (IOException e)
+        {
+            // no cgroups, or not readable.
+        }
+        finally
+        {
+            if(reader != null)
+                try { reader.close(); } catch (IOException e) {/*do nothing*/}
+        }
+        return null;
+    }
+
+    private static String readFirstLine(File file)
+    {
+        if(!file.isFile())
+            return null;
+        BufferedReader reader = null;
+        try
+        {
+            reader = new BufferedReader(new FileReader(file));
+            return reader.readLine();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        finally
+        {
+            if(reader != null)
+                try { reader.close(); } catch (IOException e) {/*do nothing*/}
+        }
+    }
+
+    /**
+     * Writes and syncs a small file in the directory, timing it, then deletes it.
+     *
+     * @return
+     * The bytes written per second, or 0 if the directory cannot be written to.
+     */
+    private static long probeWriteBytesPerSec(File dir)
+    {
+        File probe = new File(dir, PROBE_FILE_NAME);
+        FileOutputStream out = null;
+        try
+        {
+            byte[] chunk = new byte[PROBE_CHUNK_BYTES];
+            long start = System.nanoTime();
+            out = new FileOutputStream(probe);
+            for(int written = 0; written < PROBE_SIZE_BYTES; written += chunk.length)
+                out.write(chunk);
+            // without the sync only the page cache would be measured.
+            out.getFD().sync();
+            long elapsedNanos = Math.max(1, System.nanoTime() - start);
+            return PROBE_SIZE_BYTES * 1000000000L / elapsedNanos;
+        }
+        catch (IOException e)
+        {
+            Log.d(TAG, "Unable to probe the cache directory.");
+            return 0;
+        }
+        finally
+        {
+            if(out != null)
+                try { out.close(); } catch (IOException e) {/*do nothing*/}
+            probe.delete();
+        }
+    }
+
+    /**
+     * @return
+     * The number of processors this process can actually run on at the same time, at least 1.
+     */
+    public int getUsableProcessors()
+    {
+        return mUsableProcessors;
+    }
+
+    /**
+     * @return
+     * The number of processors online, as reported by the VM.
+     */
+    public int getOnlineProcessors()
+    {
+        return mOnlineProcessors;
+    }
+
+    /**
+     * @return
+     * The number of processors the process' cpu affinity allows, or -1 if unknown.
+     */
+    public int getAffinityProcessors()
+    {
+        return mAffinityProcessors;
+    }
+
+    /**
+     * @return
+     * The number of processors the cgroup cpu quota amounts to, or -1 if there is none.
+     */
+    public int getQuotaProcessors()
+    {
+        return mQuotaProcessors;
+    }
+
+    public int getMemoryClassMb()
+    {
+        return mMemoryClassMb;
+    }
+
+    /**
+     * @return
+     * The most bytes the heap may grow to, which is more than the memory class for a large heap.
+     */
+    public long getHeapLimitBytes()
+    {
+        return mMaxHeapBytes != Long.MAX_VALUE ? mMaxHeapBytes : mMemoryClassMb * 1024L * 1024L;
+    }
+
+    /**
+     * @return
+     * True if memory is scarce, so that bitmaps should rather be decoded in fewer bytes.
+     */
+    public boolean isLowMemory()
+    {
+        return mMemoryClassMb <= LOW_MEMORY_CLASS_MB;
+    }
+
+    /**
+     * @return
+     * How many bytes per second the cache directory is written to, 0 if it cannot be, or -1 until
+     * probed.
+     */
+    public long getCacheWriteBytesPerSec()
+    {
+        return mCacheWriteBytesPerSec;
+    }
+
+    /**
+     * Scales the size of a disk cache to the device: with its memory class, since devices with more
+     * memory come with more storage as well, and down on slow storage, where a large cache takes long to
+     * index and trim.
+     *
+     * @param defaultBytes
+     * The size meant for a device of a 64 megabyte memory class and fast storage.
+     * @return
+     * The size the cache should be capped to, from a quarter to twice the default.
+     */
+    public long getDiskCacheBytes(long defaultBytes)
+    {
+        int memoryClassMb = Math.max(REFERENCE_MEMORY_CLASS_MB / 2
+                , Math.min(mMemoryClassMb, REFERENCE_MEMORY_CLASS_MB * 2));
+        long bytes = defaultBytes * memoryClassMb / REFERENCE_MEMORY_CLASS_MB;
+        long bytesPerSec = mCacheWriteBytesPerSec;
+        if(bytesPerSec >= 0 && bytesPerSec < SLOW_STORAGE_BYTES_PER_SEC)
+            bytes /= 2;
+        return bytes;
+    }
+
+    /**
+     * @return
+     * The number of threads cpu bound work should be spread over.
+     */
+    public int getCpuBoundThreads()
+    {
+        return mUsableProcessors;
+    }
+
+    /**
+     * @return
+     * The number of threads disk caches should be read and written on, fewer on slow storage, the
+     * default until the cache directory has been probed.
+     */
+    public int getDiskIoThreads()
+    {
+        long bytesPerSec = mCacheWriteBytesPerSec;
+        return bytesPerSec >= 0 && bytesPerSec < SLOW_STORAGE_BYTES_PER_SEC ? 1 : DEFAULT_DISK_IO_THREADS;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ResourceProfile[processors=" + mUsableProcessors
+                + " (online=" + mOnlineProcessors + ", affinity=" + mAffinityProcessors + ", quota=" + mQuotaProcessors + ")"
+                + ", memoryClassMb=" + mMemoryClassMb
+                + ", heapLimitBytes=" + getHeapLimitBytes()
+                + ", cacheWriteBytesPerSec=" + mCacheWriteBytesPerSec + "]";
+    }
+}